@@ -1,22 +1,31 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.zip.GZIPInputStream;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 import org.geotools.geometry.jts.JTSFactoryFinder;
@@ -25,9 +34,6 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.LinearRing;
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.index.SpatialIndex;
 import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.linearref.LinearLocation;
@@ -39,6 +45,17 @@ public class Cat2Osm {
 	public static final String VERSION = "2012-11-06";
 	public static Cat2OsmUtils utils;
 
+	// Portales que busca cada tarea en calcularEntradas()
+	private static final int TAMANO_BLOQUE_PORTALES = 256;
+
+	// Shapes a partir de los que se trocean los EJES y ELEMLIN en simplificarLineas()
+	private static final int MIN_SHAPES_TROCEAR = 1000;
+
+	// Indice de los shapes por codigo de masa y referencia catastral, para no tener que
+	// recorrer todos los shapes de la masa por cada linea del .cat
+	private HashMap <String, List<Shape>> shapesIndexados = null;
+	private Map<String, Map<String, List<Shape>>> indiceRefCat = null;
+
 
 	/** Constructor
 	 * @param utils Clase utils en la que se almacenan los nodos, ways y relaciones 
@@ -49,23 +66,73 @@ public class Cat2Osm {
 	}
 
 
-	/** Busca en la lista de shapes los que coincidan con la ref catastral
-	 * @param codigo Codigo de masa
+	/** Busca en el indice de una masa los shapes que coincidan con la ref catastral
+	 * @param indice Indice refCat -> shapes de la masa
 	 * @param ref referencia catastral a buscar
-	 * @returns List<Shape> lista de shapes que coinciden                    
+	 * @returns List<Shape> lista de shapes que coinciden o null si no hay ninguno
 	 */
-	private static List<Shape> buscarRefCat(List<Shape> shapes, String ref){
+	private static List<Shape> buscarRefCat(Map<String, List<Shape>> indice, String ref){
 
-		List<Shape> shapeList = null;
+		if (indice == null)
+			return null;
+
+		return indice.get(ref);
+	}
+
+
+	/** Agrupa por referencia catastral los shapes de una lista, manteniendo su orden
+	 * @param shapes Lista de shapes
+	 * @return Indice refCat -> shapes con esa refCat
+	 */
+	private static Map<String, List<Shape>> indexarRefCat(List<Shape> shapes){
+
+		Map<String, List<Shape>> indice = new HashMap<String, List<Shape>>();
 
 		for(Shape shape : shapes) 
-			if (shape != null && shape.getRefCat() != null && shape.getRefCat().equals(ref)){
-				if (shapeList == null)
+			if (shape != null && shape.getRefCat() != null){
+				List<Shape> shapeList = indice.get(shape.getRefCat());
+				if (shapeList == null){
 					shapeList = new ArrayList<Shape>();
+					indice.put(shape.getRefCat(), shapeList);
+				}
 				shapeList.add(shape);
 			}
 
-		return shapeList;
+		return indice;
+	}
+
+
+	/** Devuelve el indice por codigo de masa y referencia catastral de los shapes.
+	 * Se crea una vez despues de leer los shapefiles y se reutiliza mientras se trabaje
+	 * con la misma lista de shapes
+	 * @param shapesTotales Shapes agrupados por codigo de masa
+	 * @return Indice codigo de masa -> refCat -> shapes
+	 */
+	private synchronized Map<String, Map<String, List<Shape>>> getIndiceRefCat(HashMap <String, List<Shape>> shapesTotales){
+
+		if (indiceRefCat == null || shapesIndexados != shapesTotales){
+			indiceRefCat = new HashMap<String, Map<String, List<Shape>>>();
+			for (Entry<String, List<Shape>> e : shapesTotales.entrySet())
+				indiceRefCat.put(e.getKey(), indexarRefCat(e.getValue()));
+			shapesIndexados = shapesTotales;
+		}
+
+		return indiceRefCat;
+	}
+
+
+	/** Devuelve el indice por referencia catastral de los shapes de una masa. Si la lista
+	 * es la que ya esta indexada se reutiliza el indice, si no se crea uno nuevo
+	 * @param key Codigo de masa
+	 * @param shapes Lista de shapes de la masa
+	 * @return Indice refCat -> shapes
+	 */
+	private synchronized Map<String, List<Shape>> getIndiceRefCat(String key, List<Shape> shapes){
+
+		if (indiceRefCat != null && shapesIndexados.get(key) == shapes && indiceRefCat.get(key) != null)
+			return indiceRefCat.get(key);
+
+		return indexarRefCat(shapes);
 	}
 
 
@@ -123,11 +190,8 @@ public class Cat2Osm {
 		// Cache para almacenar las Parcelas y sus keys ya que luego no se pueden recuperar
 		HashMap <ShapeParcela, String> cacheKeys = new HashMap<ShapeParcela, String>();
 
-		// Creamos la factoria para crear objetos de GeoTools (hay otra factoria pero falla)
-		com.vividsolutions.jts.geom.GeometryFactory factory = JTSFactoryFinder.getGeometryFactory(null);
-
 		// Creamos una cache para meter las geometrias de las parcelas y una lista con los numeros de policia de esas parcelas
-		final SpatialIndex index = new STRtree();
+		final STRtree index = new STRtree();
 
 		for (String key : shapesTotales.keySet())
 			if (!key.startsWith("EJES") && !key.startsWith("ELEM"))
@@ -151,12 +215,41 @@ public class Cat2Osm {
 				}
 
 
+		// El STRtree se construye solo en la primera consulta, hay que construirlo
+		// antes de que lo consulten varios hilos a la vez
+		index.build();
+
+		// Indice para saber sobre que parcela cae cada punto
+		final ParcelIndex parcelas = new ParcelIndex(shapesTotales, utils);
+
 		// Buscamos la parcela mas cercana
 		// Los shapes con key = "ELEMTEX189401" seran todos los elementos textuales de
-		// entradas a parcelas
-		for (Shape shapeTex : shapesTotales.get("ELEMTEX-189401")){
+		// entradas a parcelas.
+		// La busqueda de cada portal es independiente y solo lee los indices, asi que se hace
+		// en paralelo por bloques de portales. Despues se anaden las entradas a las parcelas
+		// en el orden de la lista, que es lo que modifica los ways, igual que si se hiciese en serie
+		final List<Shape> portales = shapesTotales.get("ELEMTEX-189401");
+		Entrada[] entradas = new Entrada[portales.size()];
+
+		ExecutorService pool = Executors.newFixedThreadPool(Cat2OsmUtils.getNumHilos());
+		List<Future<Entrada[]>> bloques = new ArrayList<Future<Entrada[]>>();
+
+		for (int ini = 0; ini < portales.size(); ini += TAMANO_BLOQUE_PORTALES){
+			final int desde = ini;
+			final int hasta = Math.min(ini + TAMANO_BLOQUE_PORTALES, portales.size());
+			bloques.add(pool.submit(new Callable<Entrada[]>() {
+				public Entrada[] call() {
+					Entrada[] e = new Entrada[hasta - desde];
+					for (int x = desde; x < hasta; x++)
+						e[x - desde] = buscarEntrada((ShapeElemtex) portales.get(x), index, parcelas);
+					return e;
+				}
+			}));
+		}
 
-			int progress = (int) ((pos++/size)*100);
+		for (int x = 0; x < bloques.size(); x++){
+
+			int progress = (int) ((pos/size)*100);
 			if (bar != progress){
 				timeElapsed = (timeElapsed+(100-progress)*(System.currentTimeMillis()-time)/1000)/2;
 				long hor = Math.round((timeElapsed/3600));
@@ -168,274 +261,231 @@ public class Cat2Osm {
 				time = System.currentTimeMillis();
 			}
 
-			// Guarderemos 3 parcelas
-			ShapeParcela nearestParcela = null; // Parcela mas cercana
-			ShapeParcela nearestPairParcela = null; // Parcela par o impar dependiendo del rotulo mas cercana
-			ShapeParcela nearestSameNumberParcela = null; // Parcela con el mismo addr:housenumber mas cerana
-
-			// Y 3 coordenadas
-			Coordinate nearestInsideCoor = null; // Coordenada "espejo" del elemtex con respecto a la parcela mas cercana
-			Coordinate nearestPairInsideCoor = null; // Igual pero para la parcela con par/impar
-			Coordinate nearestSameNumberInsideCoor = null; // Igual pero parSin título 1a la parcela con el mismo addr:housenumber
-
-			// Variables
-			Coordinate tempInsideCoor = new Coordinate(); // Coordenada del elemtex desplazado sobre la parcela
-			Coordinate tempSnappedCoor = new Coordinate(); // Coordenada del elemtex pegado a la geometria de la parcela
-			com.vividsolutions.jts.geom.Point point = factory.createPoint(shapeTex.getCoor());
-
-
-			// Buscamos la parcela mas cercana
-
-			double minDist = 0.00008; // Distancia minima ~ 80 metros
-
-			// Creamos el punto de busqueda con la coordenada del punto y la expandimos
-			// en la distancia minima para obtener
-			// una linea de desplazamiento para tocar la parcela
-			Envelope search = new Envelope(point.getCoordinate());
-			search.expandBy(minDist);
-
-			// Hacemos la query
-			List<LocationIndexedLine> lines = index.query(search);
-
-			// Cada linea que nos devuelve representa el desplazamiento
-			// que hay que darle a la coordenada para que se situe sobre la linea de la
-			// geometria de la parcela
-			for (LocationIndexedLine line : lines) {
-				LinearLocation here = line.project(point.getCoordinate());
-				tempSnappedCoor = line.extractPoint(here);
-				double dist = tempSnappedCoor.distance(point.getCoordinate());
-
-				if (dist < minDist) {
-					// Coordenada 1 de la recta que esta donde viene originalmente el Elemtex
-					//((ShapeElemtex) shapeTex).getCoor();
-					// Coordenada 2 de la recta que esta sobre la linea en la que empieza la parcela
-					//snappedCoor
-					//Coordenada 3 de la recta que estara encima de la parecela a la que pertenece
-					tempInsideCoor = new Coordinate(tempSnappedCoor.x+(tempSnappedCoor.x-((ShapeElemtex) shapeTex).getCoor().x),
-							tempSnappedCoor.y+(tempSnappedCoor.y-((ShapeElemtex) shapeTex).getCoor().y),
-							0);
-
-					List<Coordinate> l= new ArrayList<Coordinate>();
-					l.add(tempInsideCoor);
-					l.add(shapeTex.getCoor());
-					ShapeParcela temp = (ShapeParcela) getParcela(shapesTotales, l);
-
-					// Si hemos encontrado una parcela que cumple, actualizamos
-					if (temp != null){
-
-						// Acualizamos la variable minDist y la parcela
-						minDist = dist;
-
-						nearestParcela = temp;
-						nearestInsideCoor = tempInsideCoor;
-					}
-				}
+			try {
+				Entrada[] e = bloques.get(x).get();
+				System.arraycopy(e, 0, entradas, x * TAMANO_BLOQUE_PORTALES, e.length);
+				pos += e.length;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
 			}
+		}
+		pool.shutdown();
 
+		for (int x = 0; x < portales.size(); x++){
 
-			// Buscamos la parcela par/impar mas cercana
-
-
-			tempInsideCoor = new Coordinate(); // Coordenada del elemtex desplazado sobre la parcela
-			tempSnappedCoor = new Coordinate(); // Coordenada del elemtex pegado a la geometria de la parcela
-			point = factory.createPoint(shapeTex.getCoor());
+			Shape shapeTex = portales.get(x);
 
-			minDist = 0.00008; // Distancia minima ~ 80 metros
+			if (entradas[x] != null)
+				anadirEntradaParcela(cacheKeys.get(entradas[x].parcela), entradas[x].parcela, (ShapeElemtex)shapeTex, entradas[x].coor);
 
-			// Creamos el punto de busqueda con la coordenada del punto y la expandimos
-			// en la distancia minima para obtener
-			// una linea de desplazamiento para tocar la parcela
-			search = new Envelope(point.getCoordinate());
-			search.expandBy(minDist);
+			// No se han encontrado parcelas para ese portal
+			else{
 
-			// Hacemos la query
-			lines = index.query(search);
+				if (shapeTex.getNodesIds(0) != null && !shapeTex.getNodesIds(0).isEmpty()){
+					NodeOsm nodeTex = utils.getNode("ELEMTEX-189401", shapeTex.getNodesIds(0).get(0));
+					if (nodeTex != null) nodeTex.addTag(new String[] {"FIXME","FIXME"});
+				}
+			}
+		}
 
-			// Cada linea que nos devuelve representa el desplazamiento
-			// que hay que darle a la coordenada para que se situe sobre la linea de la
-			// geometria de la parcela
-			for (LocationIndexedLine line : lines) {
-				LinearLocation here = line.project(point.getCoordinate());
-				tempSnappedCoor = line.extractPoint(here);
-				double dist = tempSnappedCoor.distance(point.getCoordinate());
+		System.out.println("["+new Timestamp(new Date().getTime())+"] Terminado.");
+		return shapesTotales;
+	}
 
-				if (dist < minDist) {
 
-					// Coordenada 1 de la recta que esta donde viene originalmente el Elemtex
-					//((ShapeElemtex) shapeTex).getCoor();
-					// Coordenada 2 de la recta que esta sobre la linea en la que empieza la parcela
-					//snappedCoor
+	/** Busca la parcela a la que hay que anadir la entrada de un portal. Solo consulta los indices y
+	 * las relaciones, sin modificar nada, asi que se puede llamar desde varios hilos a la vez.
+	 * @param shapeTex Portal (ELEMTEX-189401)
+	 * @param index Indice de las lineas exteriores de las parcelas
+	 * @param parcelas Indice para saber sobre que parcela cae cada punto
+	 * @return Parcela y coordenada espejo en la que anadir la entrada o null si no se ha encontrado ninguna
+	 */
+	@SuppressWarnings("unchecked")
+	private static Entrada buscarEntrada(ShapeElemtex shapeTex, SpatialIndex index, ParcelIndex parcelas){
 
-					//Coordenada 3 de la recta que estara encima de la parecela a la que pertenece
-					tempInsideCoor = new Coordinate(tempSnappedCoor.x+(tempSnappedCoor.x-((ShapeElemtex) shapeTex).getCoor().x),
-							tempSnappedCoor.y+(tempSnappedCoor.y-((ShapeElemtex) shapeTex).getCoor().y),
-							0);
+		// Creamos la factoria para crear objetos de GeoTools (hay otra factoria pero falla)
+		com.vividsolutions.jts.geom.GeometryFactory factory = JTSFactoryFinder.getGeometryFactory(null);
 
-					List<Coordinate> l= new ArrayList<Coordinate>();
-					l.add(tempInsideCoor);
-					l.add(shapeTex.getCoor());
-					ShapeParcela temp = (ShapeParcela) getParcela(shapesTotales, l);
+		// Guarderemos 3 parcelas
+		ShapeParcela nearestParcela = null; // Parcela mas cercana
+		ShapeParcela nearestPairParcela = null; // Parcela par o impar dependiendo del rotulo mas cercana
+		ShapeParcela nearestSameNumberParcela = null; // Parcela con el mismo addr:housenumber mas cerana
+
+		// Y 3 coordenadas
+		Coordinate nearestInsideCoor = null; // Coordenada "espejo" del elemtex con respecto a la parcela mas cercana
+		Coordinate nearestPairInsideCoor = null; // Igual pero para la parcela con par/impar
+		Coordinate nearestSameNumberInsideCoor = null; // Igual pero parSin título 1a la parcela con el mismo addr:housenumber
+
+		// Variables
+		Coordinate tempInsideCoor = new Coordinate(); // Coordenada del elemtex desplazado sobre la parcela
+		Coordinate tempSnappedCoor = new Coordinate(); // Coordenada del elemtex pegado a la geometria de la parcela
+		com.vividsolutions.jts.geom.Point point = factory.createPoint(shapeTex.getCoor());
+
+		// Las tres parcelas se buscan a la vez recorriendo una sola vez las lineas cercanas,
+		// cada una con su distancia minima ~ 80 metros que se va reduciendo al encontrar una que cumple
+		double minDist = 0.00008; // Parcela mas cercana
+		double minDistPair = 0.00008; // Parcela par/impar mas cercana
+		double minDistSameNumber = 0.00008; // Parcela con el mismo addr:housenumber mas cercana
+
+		// Creamos el punto de busqueda con la coordenada del punto y la expandimos
+		// en la distancia minima para obtener
+		// una linea de desplazamiento para tocar la parcela
+		Envelope search = new Envelope(point.getCoordinate());
+		search.expandBy(0.00008);
+
+		// Hacemos la query
+		List<LocationIndexedLine> lines = index.query(search);
+
+		// Cada linea que nos devuelve representa el desplazamiento
+		// que hay que darle a la coordenada para que se situe sobre la linea de la
+		// geometria de la parcela
+		for (LocationIndexedLine line : lines) {
+			LinearLocation here = line.project(point.getCoordinate());
+			tempSnappedCoor = line.extractPoint(here);
+			double dist = tempSnappedCoor.distance(point.getCoordinate());
+
+			if (dist < minDist || dist < minDistPair || dist < minDistSameNumber) {
+				// Coordenada 1 de la recta que esta donde viene originalmente el Elemtex
+				//shapeTex.getCoor();
+				// Coordenada 2 de la recta que esta sobre la linea en la que empieza la parcela
+				//snappedCoor
+				//Coordenada 3 de la recta que estara encima de la parecela a la que pertenece
+				tempInsideCoor = new Coordinate(tempSnappedCoor.x+(tempSnappedCoor.x-shapeTex.getCoor().x),
+						tempSnappedCoor.y+(tempSnappedCoor.y-shapeTex.getCoor().y),
+						0);
+
+				List<Coordinate> l= new ArrayList<Coordinate>();
+				l.add(tempInsideCoor);
+				l.add(shapeTex.getCoor());
+				ShapeParcela temp = parcelas.getParcela(l);
+
+				// Si hemos encontrado una parcela que cumple, actualizamos
+				if (temp != null){
+
+					// Parcela mas cercana
+					if (dist < minDist){
 
-					// Si hemos encontrado una parcela que cumple miramos su addr:housenumber
-					if (temp != null){
+						// Acualizamos la variable minDist y la parcela
+						minDist = dist;
 
-						// Comparamos si su addr:housenumber es igual que el rotulo del elemtex
-						RelationOsm r = (RelationOsm) utils.getKeyFromValue( (Map< String, Map <Object, Long>>) ((Object)utils.getTotalRelations()), cacheKeys.get(temp), temp.getRelationId());
+						nearestParcela = temp;
+						nearestInsideCoor = tempInsideCoor;
+					}
 
-						for (String [] tag : r.getTags()){			
+					// Parcela par/impar, comparamos si su addr:housenumber tiene la misma paridad que el rotulo del elemtex
+					if (dist < minDistPair)
+						for (String [] tag : parcelas.getTagsNumero(temp)){
 
-							if (tag[0] != null && tag[0].equals("addr:housenumber") && tag[1] != null && esNumero(tag[1]) && esNumero(((ShapeElemtex)shapeTex).getRotulo().trim()) && Integer.parseInt(tag[1])%2 == Integer.parseInt(((ShapeElemtex) shapeTex).getRotulo())%2 ){
+							if (tag[0] != null && tag[0].equals("addr:housenumber") && tag[1] != null && esNumero(tag[1]) && esNumero(shapeTex.getRotulo().trim()) && Integer.parseInt(tag[1])%2 == Integer.parseInt(shapeTex.getRotulo())%2 ){
 								// Acualizamos la variable minDist y la parcela
-								minDist = dist;
+								minDistPair = dist;
 
 								nearestPairParcela = temp;
 								nearestPairInsideCoor = tempInsideCoor;
 							}
 						}
-					}
-				}
-			}
-
-
-			// Buscamos la parcela con el mismo addr:housenumber mas cercana
-
-
-			tempInsideCoor = new Coordinate(); // Coordenada del elemtex desplazado sobre la parcela
-			tempSnappedCoor = new Coordinate(); // Coordenada del elemtex pegado a la geometria de la parcela
-			point = factory.createPoint(shapeTex.getCoor());
-
-			minDist = 0.00008; // Distancia minima ~ 80 metros
-
-			// Creamos el punto de busqueda con la coordenada del punto y la expandimos
-			// en la distancia minima para obtener
-			// una linea de desplazamiento para tocar la parcela
-			search = new Envelope(point.getCoordinate());
-			search.expandBy(minDist);
-
-			// Hacemos la query
-			lines = index.query(search);
-
-			// Cada linea que nos devuelve representa el desplazamiento
-			// que hay que darle a la coordenada para que se situe sobre la linea de la
-			// geometria de la parcela
-			for (LocationIndexedLine line : lines) {
-				LinearLocation here = line.project(point.getCoordinate());
-				tempSnappedCoor = line.extractPoint(here);
-				double dist = tempSnappedCoor.distance(point.getCoordinate());
-
-				if (dist < minDist) {
-
-					// Coordenada 1 de la recta que esta donde viene originalmente el Elemtex
-					//((ShapeElemtex) shapeTex).getCoor();
-					// Coordenada 2 de la recta que esta sobre la linea en la que empieza la parcela
-					//snappedCoor
-
-					//Coordenada 3 de la recta que estara encima de la parecela a la que pertenece
-					tempInsideCoor = new Coordinate(tempSnappedCoor.x+(tempSnappedCoor.x-((ShapeElemtex) shapeTex).getCoor().x),
-							tempSnappedCoor.y+(tempSnappedCoor.y-((ShapeElemtex) shapeTex).getCoor().y),
-							0);
-
-					List<Coordinate> l= new ArrayList<Coordinate>();
-					l.add(tempInsideCoor);
-					l.add(shapeTex.getCoor());
-					ShapeParcela temp = (ShapeParcela) getParcela(shapesTotales, l);
 
-					// Si hemos encontrado una parcela que cumple miramos su addr:housenumber
-					if (temp != null){
-
-						// Comparamos si su addr:housenumber es igual que el rotulo del elemtex
-						RelationOsm r = (RelationOsm) utils.getKeyFromValue( (Map< String, Map <Object, Long>>) ((Object)utils.getTotalRelations()), cacheKeys.get(temp), temp.getRelationId());
-
-						for (String [] tag : r.getTags())
-							if (tag[0] != null && !tag[0].isEmpty() && tag[0].trim().equals("addr:housenumber") && tag[1] != null && !tag[1].isEmpty() && tag[1].trim().equals(((ShapeElemtex) shapeTex).getRotulo().trim())){
+					// Parcela con el mismo numero, comparamos si su addr:housenumber es igual que el rotulo del elemtex
+					if (dist < minDistSameNumber)
+						for (String [] tag : parcelas.getTagsNumero(temp))
+							if (tag[0] != null && !tag[0].isEmpty() && tag[0].trim().equals("addr:housenumber") && tag[1] != null && !tag[1].isEmpty() && tag[1].trim().equals(shapeTex.getRotulo().trim())){
 
 								// Acualizamos la variable minDist y la parcela
-								minDist = dist;
+								minDistSameNumber = dist;
 
 								nearestSameNumberParcela = temp;
 								nearestSameNumberInsideCoor = tempInsideCoor;
 							}
-					}
 				}
 			}
+		}
 
-			// Una vez que ya tenemos las 3 parcelas
-			if (nearestParcela != null){
+		// Una vez que ya tenemos las 3 parcelas
+		if (nearestParcela != null){
 
-				if (nearestPairParcela != null){
+			if (nearestPairParcela != null){
 
-					if (nearestSameNumberParcela != null){
+				if (nearestSameNumberParcela != null){
 
-						// Si se han encontrado las 3 pero son la misma
-						if (nearestPairParcela.equals(nearestParcela) && nearestPairParcela.equals(nearestSameNumberParcela)){
-							anadirEntradaParcela(cacheKeys.get(nearestParcela), nearestParcela, (ShapeElemtex)shapeTex, nearestInsideCoor);
-						}
-						// Si se han encontrado las 3 pero la par/impar y mismo numero son iguales y la mas cercana es distinta
-						// Coger la mismo numero ya que sera que esta mas cerca del otro lado de la calle
-						else { 
-							if (nearestPairParcela.equals(nearestSameNumberParcela) && !nearestPairParcela.equals(nearestParcela)){
-								anadirEntradaParcela(cacheKeys.get(nearestSameNumberParcela), nearestSameNumberParcela, (ShapeElemtex)shapeTex, nearestSameNumberInsideCoor);
-
-							} else {
-								// Si se han encontrado las 3 pero la del numero igual es distinta 
-								// Se comprueba si la del numero igual esta muy lejos para que no sea una con un mismo numero de otra calle
-								if (nearestPairParcela.equals(nearestParcela) && !nearestPairParcela.equals(nearestSameNumberParcela)){
-									// Si esta a menos de 20metros supondremos que es a la que deberia ir
-									if (shapeTex.getCoor().distance(nearestSameNumberInsideCoor) <= 0.00002){
-										anadirEntradaParcela(cacheKeys.get(nearestSameNumberParcela), nearestSameNumberParcela, (ShapeElemtex)shapeTex, nearestSameNumberInsideCoor);
-									}
-									// Si esta mas lejos quiere decir que no es de esa calle
-									// Coger la par/impar ya que sera que no hay parcela con ese numero
-									else{
-										anadirEntradaParcela(cacheKeys.get(nearestPairParcela), nearestPairParcela, (ShapeElemtex)shapeTex, nearestPairInsideCoor);
-									}
+					// Si se han encontrado las 3 pero son la misma
+					if (nearestPairParcela.equals(nearestParcela) && nearestPairParcela.equals(nearestSameNumberParcela)){
+						return new Entrada(nearestParcela, nearestInsideCoor);
+					}
+					// Si se han encontrado las 3 pero la par/impar y mismo numero son iguales y la mas cercana es distinta
+					// Coger la mismo numero ya que sera que esta mas cerca del otro lado de la calle
+					else { 
+						if (nearestPairParcela.equals(nearestSameNumberParcela) && !nearestPairParcela.equals(nearestParcela)){
+							return new Entrada(nearestSameNumberParcela, nearestSameNumberInsideCoor);
+
+						} else {
+							// Si se han encontrado las 3 pero la del numero igual es distinta 
+							// Se comprueba si la del numero igual esta muy lejos para que no sea una con un mismo numero de otra calle
+							if (nearestPairParcela.equals(nearestParcela) && !nearestPairParcela.equals(nearestSameNumberParcela)){
+								// Si esta a menos de 20metros supondremos que es a la que deberia ir
+								if (shapeTex.getCoor().distance(nearestSameNumberInsideCoor) <= 0.00002){
+									return new Entrada(nearestSameNumberParcela, nearestSameNumberInsideCoor);
 								}
-								// Si se han encontrado las 3 y las 3 son distintas
-								// Comparamos la distancia a la que esta la del mismo numero y si esta a mas de 20metros cogemos la par/impar
+								// Si esta mas lejos quiere decir que no es de esa calle
+								// Coger la par/impar ya que sera que no hay parcela con ese numero
 								else{
-									if (shapeTex.getCoor().distance(nearestSameNumberInsideCoor) <= 0.00002){
-										anadirEntradaParcela(cacheKeys.get(nearestSameNumberParcela), nearestSameNumberParcela, (ShapeElemtex)shapeTex, nearestSameNumberInsideCoor);
-									}
-									else {
-										anadirEntradaParcela(cacheKeys.get(nearestPairParcela), nearestPairParcela, (ShapeElemtex)shapeTex, nearestPairInsideCoor);
-									}
+									return new Entrada(nearestPairParcela, nearestPairInsideCoor);
+								}
+							}
+							// Si se han encontrado las 3 y las 3 son distintas
+							// Comparamos la distancia a la que esta la del mismo numero y si esta a mas de 20metros cogemos la par/impar
+							else{
+								if (shapeTex.getCoor().distance(nearestSameNumberInsideCoor) <= 0.00002){
+									return new Entrada(nearestSameNumberParcela, nearestSameNumberInsideCoor);
+								}
+								else {
+									return new Entrada(nearestPairParcela, nearestPairInsideCoor);
 								}
 							}
 						}
 					}
-					// No existe sameNumberParcela
-					else{
+				}
+				// No existe sameNumberParcela
+				else{
 
-						// Si se han encontrado solo estas dos pero son la misma
-						if (nearestPairParcela.equals(nearestParcela)){
-							anadirEntradaParcela(cacheKeys.get(nearestParcela), nearestParcela, (ShapeElemtex)shapeTex, nearestInsideCoor);
-						}
-						// Si se han encontrado las dos pero son distintas (se deduce que la par/impar estara algo mas lejos)
-						// Coger la par/impar ya que la mas cercana sera la de enfrente en la calle
-						else{
-							anadirEntradaParcela(cacheKeys.get(nearestPairParcela), nearestPairParcela, (ShapeElemtex)shapeTex, nearestPairInsideCoor);
-						}
+					// Si se han encontrado solo estas dos pero son la misma
+					if (nearestPairParcela.equals(nearestParcela)){
+						return new Entrada(nearestParcela, nearestInsideCoor);
+					}
+					// Si se han encontrado las dos pero son distintas (se deduce que la par/impar estara algo mas lejos)
+					// Coger la par/impar ya que la mas cercana sera la de enfrente en la calle
+					else{
+						return new Entrada(nearestPairParcela, nearestPairInsideCoor);
 					}
-
 				}
 
-				// Solo se ha encontrado la mas cercana
-				else{
-					anadirEntradaParcela(cacheKeys.get(nearestParcela), nearestParcela, (ShapeElemtex)shapeTex, nearestInsideCoor);
-				}
 			}
-			// No se han encontrado parcelas para ese portal
-			else{
 
-				if (shapeTex.getNodesIds(0) != null && !shapeTex.getNodesIds(0).isEmpty()){
-					NodeOsm nodeTex = ((NodeOsm) utils.getKeyFromValue((Map< String, Map <Object, Long>>) ((Object)utils.getTotalNodes()), "ELEMTEX-189401", shapeTex.getNodesIds(0).get(0)));
-					if (nodeTex != null) nodeTex.addTag(new String[] {"FIXME","FIXME"});
-				}
+			// Solo se ha encontrado la mas cercana
+			else{
+				return new Entrada(nearestParcela, nearestInsideCoor);
 			}
 		}
 
-		System.out.println("["+new Timestamp(new Date().getTime())+"] Terminado.");
-		return shapesTotales;
+		// No se han encontrado parcelas para ese portal
+		return null;
+	}
+
+
+	/** Parcela a la que hay que anadir la entrada de un portal y coordenada espejo del portal
+	 * con respecto a ella
+	 */
+	private static class Entrada {
+
+		final ShapeParcela parcela;
+		final Coordinate coor;
+
+		Entrada(ShapeParcela parcela, Coordinate coor){
+			this.parcela = parcela;
+			this.coor = coor;
+		}
 	}
 
 
@@ -453,7 +503,7 @@ public class Cat2Osm {
 
 		for (Shape shape : shapes)
 			if (shape != null && shape instanceof ShapeParcela){
-				RelationOsm r = ((RelationOsm) utils.getKeyFromValue((Map< String, Map <Object, Long>>) ((Object) utils.getTotalRelations()), key, shape.getRelationId()));
+				RelationOsm r = utils.getRelation(key, shape.getRelationId());
 				if (r != null) {
 					List<String[]> tags = destinoParser(((ShapeParcela)shape).getUsoDestinoMasArea());
 
@@ -478,49 +528,24 @@ public class Cat2Osm {
 				}
 			}
 
-		for (Shape shape: shapes) {
-			if (shape != (null) && shape instanceof ShapeConstru) {
-				if (tagsBuildingMap.containsKey(shape.getRefCat())) {
-					RelationOsm r2 = ((RelationOsm) utils.getKeyFromValue((Map<String, Map <Object, Long>>) ((Object) utils.getTotalRelations()), key, shape.getRelationId()));	
-					r2.addTags(tagsBuildingMap.get(shape.getRefCat()));
-				}
-			}
+		// Los edificios de cada parcela se sacan del indice por referencia catastral
+		Map<String, List<Shape>> indice = getIndiceRefCat(key, shapes);
+
+		for (Entry<String, List<String[]>> e : tagsBuildingMap.entrySet()) {
+			List<Shape> matches = buscarRefCat(indice, e.getKey());
+			if (matches != null)
+				for (Shape shape : matches)
+					if (shape instanceof ShapeConstru) {
+						RelationOsm r2 = utils.getRelation(key, shape.getRelationId());	
+						if (r2 != null)
+							r2.addTags(e.getValue());
+					}
 		}
 
-		return shapes;
-	}
-
-
-	/** Devuelve el shape de parcela sobre el que se encuentra el punto indicado
-	 * @param shapesTotales Lista de shapes original
-	 * @param coor Coordenada que hay que comprobar sobre que shapeParcela esta
-	 * @return Shape que coincide
-	 */
-	public Shape getParcela(HashMap <String, List<Shape>> shapesTotales, List<Coordinate> coors){
+		// Los usos de parcelas y edificios son los mismos en muchas relaciones
+		utils.compartirTags(key);
 
-		// Creamos la factoria para crear objetos de GeoTools (hay otra factoria pero falla)
-		com.vividsolutions.jts.geom.GeometryFactory gf = JTSFactoryFinder.getGeometryFactory(null);
-		List<Shape> matches = new ArrayList<Shape>();
-
-		for (String key : shapesTotales.keySet())
-			for (Shape s: shapesTotales.get(key))
-
-				if (s instanceof ShapeParcela && s.getPoligons() != null){
-
-					// Cogemos el outer de la parcela que esta en la posicion[0]
-					LinearRing l = gf.createLinearRing(s.getPoligons().get(0).getCoordinates());
-					Polygon parcela = gf.createPolygon(l, null);
-
-					for(Coordinate coor : coors){
-						Point point = gf.createPoint(coor);
-						// Si cumple lo anadimos
-						if (point.intersects(parcela) && !matches.contains(s)){
-							return s;
-						}
-					}
-				}
-
-		return null;
+		return shapes;
 	}
 
 
@@ -549,7 +574,12 @@ public class Cat2Osm {
 
 		WayOsm way1 = null;
 		WayOsm way2 = null;
-		WayOsm removeWay = null;
+
+		// Shapes por su shapeId, para no tener que recorrer toda la lista por cada way que se borra
+		Map<String, Shape> shapesPorId = new HashMap<String, Shape>();
+		for (Shape s : shapes)
+			if (s != null)
+				shapesPorId.put(s.getShapeId(), s);
 
 		// Buscamos la parcela mas cercana
 
@@ -569,7 +599,17 @@ public class Cat2Osm {
 			}
 
 			if (shape != null && shape.getPoligons() != null)
-				for (int x = 0; x < shape.getPoligons().size(); x++)
+				for (int x = 0; x < shape.getPoligons().size(); x++){
+
+					// Cada vez que se juntan dos ways se vuelve a empezar el poligono desde el principio.
+					// Las parejas de ways que ya se han visto que no se pueden juntar no cambian mientras
+					// ninguno de los dos se junte con otro (al juntarse se sustituyen por otro objeto), asi
+					// que se guarda para cada way con que siguiente way no se puede juntar y no se vuelven a comprobar
+					Map<WayOsm, WayOsm> noUnibles = new IdentityHashMap<WayOsm, WayOsm>();
+
+					// Cada poligono empieza sin way borrado, para que lo que se haya juntado en el
+					// anterior no cambie el orden en el que se recorre este
+					WayOsm removeWay = null;
 
 					for(int y = 0; shape.getWaysIds(x) != null && !shape.getWaysIds(x).isEmpty() && y < shape.getWaysIds(x).size()+1; y++){
 
@@ -578,20 +618,15 @@ public class Cat2Osm {
 							y = -1;
 						}
 						// Formula para que compruebe tambien el way(0) con el ultimo way = way(size()) 
-						way1 = ((WayOsm) 
-								utils.getKeyFromValue(
-										(Map< String, Map <Object, Long>>) (
-												(Object)utils.getTotalWays()), 
-												key,
-												shape.getWaysIds(x).get((y+shape.getWaysIds(x).size())%shape.getWaysIds(x).size())));
-						way2 = ((WayOsm) 
-								utils.getKeyFromValue(
-										(Map< String, Map <Object, Long>>) (
-												(Object)utils.getTotalWays()),
-												key,
-												shape.getWaysIds(x).get((y+1+shape.getWaysIds(x).size())%shape.getWaysIds(x).size())));
+						way1 = utils.getWay(key,
+												shape.getWaysIds(x).get((y+shape.getWaysIds(x).size())%shape.getWaysIds(x).size()));
+						way2 = utils.getWay(key,
+												shape.getWaysIds(x).get((y+1+shape.getWaysIds(x).size())%shape.getWaysIds(x).size()));
 
 
+						if (way1 != null && way2 != null && noUnibles.get(way1) == way2)
+							continue;
+
 						if (way1 != null && way2 != null && !way1.getNodes().equals(way2.getNodes()) && way1.sameShapes(way2.getShapes()) ){
 
 							// Juntamos los ways y borra el way que no se va a usar de las relations
@@ -600,22 +635,25 @@ public class Cat2Osm {
 							if (removeWay != null){
 
 								// Eliminamos de la lista total de ways el way a eliminar
-								long wayId = utils.getTotalWays().get(key).get(removeWay);
-								utils.getTotalWays().get(key).remove(removeWay);
+								long wayId = utils.removeWay(key, removeWay);
 
 								// Borramos el way que no se va a usar de los shapes
 								for (int shapeIdsPos = 0; shapeIdsPos < removeWay.getShapes().size(); shapeIdsPos++){
 
-									String shapeId = removeWay.getShapes().get(shapeIdsPos);
+									Shape s = shapesPorId.get(removeWay.getShapes().get(shapeIdsPos));
 
-									for (Shape s : shapes)
-										if (s != null && s.getShapeId() == shapeId)
-											for (int p = 0; p < s.getPoligons().size(); p++)
-												s.deleteWay(p, wayId);
+									if (s != null)
+										for (int p = 0; p < s.getPoligons().size(); p++)
+											s.deleteWay(p, wayId);
 								}
 							}
+							else
+								noUnibles.put(way1, way2);
 						}
+						else if (way1 != null && way2 != null)
+							noUnibles.put(way1, way2);
 					}
+				}
 		}
 		System.out.println("["+new Timestamp(new Date().getTime())+"]    Terminado.");
 		return shapes;
@@ -659,7 +697,7 @@ public class Cat2Osm {
 				time = System.currentTimeMillis();
 			}
 
-			RelationOsm relation = (RelationOsm) utils.getKeyFromValue( (Map<String, Map <Object, Long>>) ((Object)utils.getTotalRelations()), key, shape.getRelationId());		
+			RelationOsm relation = utils.getRelation(key, shape.getRelationId());		
 
 
 			if (relation != null){
@@ -701,7 +739,7 @@ public class Cat2Osm {
 							}
 
 					// Luego la relacion
-					utils.getTotalRelations().get(key).remove(relation);
+					utils.removeRelation(key, relation);
 
 					// Por ultimo borramos el shape
 					it.remove();
@@ -712,6 +750,146 @@ public class Cat2Osm {
 	}
 
 
+	/** Simplifica los ways y une los shapes de EJES o ELEMLIN (simplificarWays() y unirShapes())
+	 * repartiendo los shapes en trozos que se procesan a la vez. Los shapes que no comparten
+	 * ningun nodo no se pueden juntar entre si, asi que cada trozo se forma con grupos enteros de
+	 * shapes conectados y ningun way cruza de un trozo a otro (no hay que coser nada despues).
+	 * Dentro de cada trozo los shapes mantienen el orden de la lista.
+	 * @param key Codigo de masa
+	 * @param shapes Lista de shapes
+	 * @param pool Pool en el que procesar los trozos, no puede ser el mismo que espera a este metodo
+	 * @return Lista de shapes con la simplificacion hecha.
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public List<Shape> simplificarLineas(final String key, List<Shape> shapes, ExecutorService pool) throws InterruptedException, ExecutionException{
+
+		List<List<Shape>> trozos = trocear(key, shapes, shapes.size() < MIN_SHAPES_TROCEAR ? 1 : Cat2OsmUtils.getNumHilos());
+
+		if (trozos.size() < 2){
+			simplificarWays(key, shapes);
+			unirShapes(key, shapes);
+			return shapes;
+		}
+
+		System.out.println("["+new Timestamp(new Date().getTime())+"]    Simplificando " + key + " en " + trozos.size() + " trozos.");
+
+		List<Future<?>> tareas = new ArrayList<Future<?>>();
+		for (final List<Shape> trozo : trozos)
+			tareas.add(pool.submit(new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					simplificarWays(key, trozo);
+					unirShapes(key, trozo);
+					return null;
+				}
+			}));
+
+		for (Future<?> tarea : tareas)
+			tarea.get();
+
+		return shapes;
+	}
+
+
+	/** Agrupa los shapes que comparten algun nodo (directamente o a traves de otros shapes)
+	 * y reparte los grupos en trozos con un numero parecido de shapes
+	 * @param key Codigo de masa
+	 * @param shapes Lista de shapes
+	 * @param numTrozos Numero maximo de trozos
+	 * @return Trozos, cada uno con sus shapes en el orden de la lista original
+	 */
+	private static List<List<Shape>> trocear(String key, List<Shape> shapes, int numTrozos){
+
+		// Cada shape empieza en su propio grupo y se juntan los grupos de los shapes
+		// que tienen un nodo en comun
+		int[] grupo = new int[shapes.size()];
+		for (int x = 0; x < grupo.length; x++)
+			grupo[x] = x;
+
+		Map<Long, Integer> shapePorNodo = new HashMap<Long, Integer>();
+
+		for (int x = 0; x < shapes.size(); x++){
+
+			Shape shape = shapes.get(x);
+			if (shape == null)
+				continue;
+
+			// Ways de los poligonos del shape y de su relacion
+			List<Long> ways = new ArrayList<Long>();
+			for (int p = 0; shape.getPoligons() != null && p < shape.getPoligons().size(); p++)
+				if (shape.getWaysIds(p) != null)
+					ways.addAll(shape.getWaysIds(p));
+			RelationOsm relation = utils.getRelation(key, shape.getRelationId());
+			if (relation != null && relation.getIds() != null)
+				ways.addAll(relation.getIds());
+
+			for (Long wayId : ways){
+				WayOsm way = utils.getWay(key, wayId);
+				if (way != null)
+					for (Long nodeId : way.getNodes()){
+						Integer otro = shapePorNodo.get(nodeId);
+						if (otro == null)
+							shapePorNodo.put(nodeId, x);
+						else
+							grupo[raiz(grupo, otro)] = raiz(grupo, x);
+					}
+			}
+		}
+
+		// Posiciones de cada grupo, en el orden en el que aparece su primer shape
+		Map<Integer, List<Integer>> grupos = new LinkedHashMap<Integer, List<Integer>>();
+		for (int x = 0; x < grupo.length; x++){
+			List<Integer> l = grupos.get(raiz(grupo, x));
+			if (l == null){
+				l = new ArrayList<Integer>();
+				grupos.put(raiz(grupo, x), l);
+			}
+			l.add(x);
+		}
+
+		// Se reparten de mayor a menor, cada grupo al trozo que menos shapes tenga
+		List<List<Integer>> ordenados = new ArrayList<List<Integer>>(grupos.values());
+		Collections.sort(ordenados, new Comparator<List<Integer>>() {
+			public int compare(List<Integer> g1, List<Integer> g2) {
+				return g2.size() - g1.size();
+			}
+		});
+
+		List<List<Integer>> posiciones = new ArrayList<List<Integer>>();
+		for (int x = 0; x < Math.min(numTrozos, ordenados.size()); x++)
+			posiciones.add(new ArrayList<Integer>());
+
+		for (List<Integer> g : ordenados){
+			List<Integer> menor = posiciones.get(0);
+			for (List<Integer> t : posiciones)
+				if (t.size() < menor.size())
+					menor = t;
+			menor.addAll(g);
+		}
+
+		List<List<Shape>> trozos = new ArrayList<List<Shape>>();
+		for (List<Integer> t : posiciones){
+			Collections.sort(t);
+			List<Shape> trozo = new ArrayList<Shape>(t.size());
+			for (Integer x : t)
+				trozo.add(shapes.get(x));
+			trozos.add(trozo);
+		}
+
+		return trozos;
+	}
+
+
+	/** Grupo al que pertenece un shape en trocear(), acortando el camino de los que recorre */
+	private static int raiz(int[] grupo, int x){
+		while (grupo[x] != x){
+			grupo[x] = grupo[grupo[x]];
+			x = grupo[x];
+		}
+		return x;
+	}
+
+
 	/** Une todos los shapes que compartan algun nodo
 	 * @param shapes Lista de shapes
 	 * @return Lista de shapes
@@ -730,8 +908,26 @@ public class Cat2Osm {
 
 		WayOsm removeWay = null;
 
-		Iterator<Shape> it1 = shapes.iterator();
-		while(it1.hasNext()){
+		// Relacion de cada shape, en el mismo orden que la lista
+		List<RelationOsm> relaciones = new ArrayList<RelationOsm>();
+		for (Shape shape : shapes)
+			relaciones.add(utils.getRelation(key, shape.getRelationId()));
+
+		// Indice de nodo -> posiciones de los shapes cuya relacion tiene algun way con ese nodo,
+		// para comparar cada relacion solo con las que se tocan y no con todas las demas.
+		// Al juntar ways se van anadiendo posiciones pero nunca se quitan, asi que puede dar
+		// de mas pero no de menos (y comparar dos relaciones que no se tocan no hace nada)
+		PosicionesPorNodo posicionesPorNodo = new PosicionesPorNodo();
+		for (int p = 0; p < relaciones.size(); p++)
+			if (relaciones.get(p) != null && relaciones.get(p).getIds() != null)
+				for (Long wayId : relaciones.get(p).getIds()){
+					WayOsm way = utils.getWay(key, wayId);
+					if (way != null)
+						for (Long nodeId : way.getNodes())
+							posicionesPorNodo.anadir(nodeId, p);
+				}
+
+		for (int p1 = 0; p1 < relaciones.size(); p1++){
 
 			// Codigo para el calculo del tiempo estimado
 			int progress = (int) ((pos++/size)*100);
@@ -746,27 +942,30 @@ public class Cat2Osm {
 				time = System.currentTimeMillis();
 			}
 
-			RelationOsm rel1 = (RelationOsm) utils.getKeyFromValue((Map<String, Map <Object, Long>>) (
-					(Object)utils.getTotalRelations()), 
-					key,
-					it1.next().getRelationId());
+			RelationOsm rel1 = relaciones.get(p1);
 
 			if (rel1 != null){
 
-				Iterator<Shape> it2 = shapes.iterator();
+				// Posiciones de las relaciones que tocan a rel1, se recorren en el orden de la lista
+				// y se amplia cada vez que rel1 crece al juntarle un way
+				TreeSet<Integer> pendientes = new TreeSet<Integer>();
+				for (int x = 0; rel1.getIds() != null && x < rel1.getIds().size(); x++){
+					WayOsm way = utils.getWay(key, rel1.getIds().get(x));
+					if (way != null)
+						for (Long nodeId : way.getNodes())
+							if (posicionesPorNodo.get(nodeId) != null)
+								pendientes.addAll(posicionesPorNodo.get(nodeId));
+				}
 
-				while (it2.hasNext()){
+				for (Integer p2 = pendientes.isEmpty() ? null : pendientes.first(); p2 != null; p2 = pendientes.higher(p2)){
 
-					RelationOsm rel2 = (RelationOsm) utils.getKeyFromValue((Map<String, Map <Object, Long>>) (
-							(Object)utils.getTotalRelations()), 
-							key,
-							it2.next().getRelationId());
+					RelationOsm rel2 = relaciones.get(p2);
 
 					if ( rel1 != rel2 && rel2 != null )
 
 						// Comprobamos si se tocan
 						for (int x = 0; rel1.getIds() != null && x < rel1.getIds().size(); x++){
-							WayOsm way1 = ((WayOsm)utils.getKeyFromValue((Map< String, Map <Object, Long>>) ((Object)utils.getTotalWays()), key, rel1.getIds().get(x)));
+							WayOsm way1 = utils.getWay(key, rel1.getIds().get(x));
 
 							if (way1 != null)
 
@@ -774,7 +973,7 @@ public class Cat2Osm {
 
 									// Si el way2 contiene alguno de los nodos del way1 es que son juntables
 									for (int y = 0; rel2.getIds() != null && y < rel2.getIds().size(); y++){
-										WayOsm way2 = ((WayOsm)utils.getKeyFromValue((Map< String, Map <Object, Long>>) ((Object)utils.getTotalWays()), key, rel2.getIds().get(y)));
+										WayOsm way2 = utils.getWay(key, rel2.getIds().get(y));
 
 										if (way2 != null && way2.getNodes().contains(nodeId))
 
@@ -783,9 +982,13 @@ public class Cat2Osm {
 
 										if (removeWay != null){
 											// Eliminamos de la lista total de ways el way a eliminar
-											utils.getTotalWays().get(key).remove(removeWay);
+											utils.removeWay(key, removeWay);
 											y--;
 											removeWay = null;
+
+											// El way que queda tiene los nodos de los dos, asi que las relaciones
+											// que tocaban a cualquiera de ellos ahora pueden tocar a las dos
+											pendientes.addAll(posicionesPorNodo.unir(way1, way2));
 										}
 									}
 								}
@@ -799,12 +1002,81 @@ public class Cat2Osm {
 	}
 
 
-	/** Concatena los 3 archivos, Nodos + Ways + Relations y lo deja en el OutOsm.
-	 * @param oF Ruta donde esta el archivo final
-	 * @param tF Ruta donde estan los archivos temporadles (nodos, ways y relations)
+	/** Indice de nodo -> posiciones de los shapes de unirShapes. Los nodos de los ways que
+	 * se juntan pasan a compartir un solo conjunto de posiciones (union-find sobre los nodos),
+	 * asi juntar dos ways no copia las posiciones en cada uno de sus nodos
+	 */
+	private static class PosicionesPorNodo {
+
+		private final Map<Long, Integer> numeros = new HashMap<Long, Integer>(); // Nodo -> numero en grupo
+		private int[] grupo = new int[16]; // Grupo de cada nodo, como en trocear()
+		private final List<Set<Integer>> posiciones = new ArrayList<Set<Integer>>(); // Solo en la raiz de cada grupo
+
+		/** Anade la posicion de un shape a un nodo */
+		void anadir(Long nodeId, int pos){
+			Integer n = numeros.get(nodeId);
+			if (n == null){
+				n = posiciones.size();
+				numeros.put(nodeId, n);
+				if (n == grupo.length)
+					grupo = Arrays.copyOf(grupo, grupo.length * 2);
+				grupo[n] = n;
+				posiciones.add(new HashSet<Integer>());
+			}
+			posiciones.get(raiz(grupo, n)).add(pos);
+		}
+
+		/** Posiciones de los shapes que tocan un nodo, o null si no esta en el indice */
+		Set<Integer> get(Long nodeId){
+			Integer n = numeros.get(nodeId);
+			return n == null ? null : posiciones.get(raiz(grupo, n));
+		}
+
+		/** Despues de juntar dos ways, junta los grupos de todos sus nodos. El conjunto
+		 * mas pequeno se vuelca en el mas grande
+		 * @param way1 Way1 que se ha juntado
+		 * @param way2 Way2 que se ha juntado
+		 * @return Posiciones de los shapes que tocan al way resultante
+		 */
+		Set<Integer> unir(WayOsm way1, WayOsm way2){
+
+			List<Long> nodos = new ArrayList<Long>(way1.getNodes());
+			nodos.addAll(way2.getNodes());
+
+			int r = -1;
+			for (Long nodeId : nodos){
+				Integer n = numeros.get(nodeId);
+				if (n == null)
+					continue;
+				int otra = raiz(grupo, n);
+				if (r == -1)
+					r = otra;
+				else if (otra != r){
+					if (posiciones.get(otra).size() > posiciones.get(r).size()){
+						int t = r;
+						r = otra;
+						otra = t;
+					}
+					posiciones.get(r).addAll(posiciones.get(otra));
+					posiciones.set(otra, null);
+					grupo[otra] = r;
+				}
+			}
+
+			return r == -1 ? new HashSet<Integer>() : posiciones.get(r);
+		}
+	}
+
+
+	/** Concatena los 3 archivos temporales de una masa, Nodos + Ways + Relations, en su archivo .osm.gz.
+	 * No borra los temporales, que luego se vuelcan en el archivo global con volcarFilesTemporales().
+	 * Como solo toca los archivos de la masa se puede llamar a la vez para masas distintas.
+	 * @param key Codigo de masa
+	 * @param folder Carpeta de la masa (masas, ejes o elementos)
+	 * @param filename Nombre del archivo resultado de la masa
 	 * @throws IOException
 	 */
-	public void juntarFilesTemporales(String key, String folder, String filename, BufferedWriter outOsmGlobal) throws IOException{
+	public void escribirOsmMasa(String key, String folder, String filename) throws IOException{
 
 		String path = Config.get("ResultPath") + "/" + Config.get("ResultFileName");
 
@@ -823,59 +1095,87 @@ public class Cat2Osm {
 		outOsm.write("<osm version=\"0.6\" generator=\"cat2osm-"+VERSION+"\">");outOsm.newLine();	
 
 		// Concatenamos todos los archivos
-		String str;
+		for (File temporal : filesTemporales(key, folder))
+			concatenar(temporal, outOsm);
 
-		if (new File(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempNodes.osm").exists())
-		{
-			BufferedReader inNodes = new BufferedReader(new FileReader(path + "/" + folder + "/" +Config.get("ResultFileName") + "-" + key + "tempNodes.osm"));
-			while ((str = inNodes.readLine()) != null){
-				outOsm.write(str);
-				outOsm.newLine();
+		outOsm.write("</osm>");outOsm.newLine();
 
-				outOsmGlobal.write(str);
-				outOsmGlobal.newLine();
-			}
-			inNodes.close();
-		}
+		outOsm.close();
+	}
 
-		if (new File(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempWays.osm").exists())
-		{
-			BufferedReader inWays = new BufferedReader(new FileReader(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempWays.osm"));
-			while ((str = inWays.readLine()) != null){
-				outOsm.write(str);
-				outOsm.newLine();
 
-				outOsmGlobal.write(str);
-				outOsmGlobal.newLine();
-			}
-			inWays.close();
-		}
+	/** Concatena los 3 archivos temporales de una masa en el archivo global y los borra.
+	 * Lo debe llamar un solo hilo y siempre en el mismo orden de masas.
+	 * @param key Codigo de masa
+	 * @param folder Carpeta de la masa (masas, ejes o elementos)
+	 * @param outOsmGlobal Archivo global de resultado
+	 * @throws IOException
+	 */
+	public void volcarFilesTemporales(String key, String folder, BufferedWriter outOsmGlobal) throws IOException{
 
-		if (new File(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempRelations.osm").exists())
-		{
-			BufferedReader inRelations = new BufferedReader(new FileReader(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempRelations.osm"));
-			while ((str = inRelations.readLine()) != null){
-				outOsm.write(str);
-				outOsm.newLine();
+		boolean borrado = true;
 
-				outOsmGlobal.write(str);
-				outOsmGlobal.newLine();
-			}
-			inRelations.close();
+		for (File temporal : filesTemporales(key, folder)){
+			concatenar(temporal, outOsmGlobal);
+			borrado = temporal.delete() && borrado;
 		}
-		outOsm.write("</osm>");outOsm.newLine();
 
-		outOsm.close();
+		if (!borrado)
+			System.out.println("["+new Timestamp(new Date().getTime())+"] NO se pudo borrar alguno de los archivos temporales." +
+					" Estos estarán en la carpeta "+ Config.get("ResultPath") + "/" + Config.get("ResultFileName") + "/" + folder +".");
+	}
+
+
+	/** Borra los archivos temporales y el archivo resultado de una masa que ha fallado,
+	 * para que no queden a medias ni se tomen en otra ejecucion por los de una interrumpida
+	 * @param key Codigo de masa
+	 * @param folder Carpeta de la masa (masas, ejes o elementos)
+	 */
+	public void borrarFilesMasa(String key, String folder){
 
 		boolean borrado = true;
-		borrado = borrado && (new File(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempNodes.osm")).delete();
-		borrado = borrado && (new File(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempWays.osm")).delete();
-		borrado = borrado && (new File(path + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + "tempRelations.osm")).delete();
+
+		for (File temporal : filesTemporales(key, folder))
+			borrado = (!temporal.exists() || temporal.delete()) && borrado;
+
+		File resultado = new File(Config.get("ResultPath") + "/" + Config.get("ResultFileName") + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key + ".osm.gz");
+		borrado = (!resultado.exists() || resultado.delete()) && borrado;
 
 		if (!borrado)
-			System.out.println("["+new Timestamp(new Date().getTime())+"] NO se pudo borrar alguno de los archivos temporales." +
-					" Estos estarán en la carpeta "+ path + "/" + folder +".");
+			System.out.println("["+new Timestamp(new Date().getTime())+"] NO se pudo borrar alguno de los archivos de " + key + "." +
+					" Estos estarán en la carpeta "+ Config.get("ResultPath") + "/" + Config.get("ResultFileName") + "/" + folder +".");
+	}
+
+
+	/** Archivos temporales de una masa en el orden en el que se concatenan
+	 * (nodos, ways y relations)
+	 */
+	private static File[] filesTemporales(String key, String folder){
+		String path = Config.get("ResultPath") + "/" + Config.get("ResultFileName") + "/" + folder + "/" + Config.get("ResultFileName") + "-" + key;
+		return new File[]{
+				new File(path + "tempNodes.osm"),
+				new File(path + "tempWays.osm"),
+				new File(path + "tempRelations.osm")};
+	}
+
+
+	/** Copia linea a linea un archivo temporal al final de otro, si existe
+	 * @param temporal Archivo temporal
+	 * @param out Archivo al que se concatena
+	 * @throws IOException
+	 */
+	private static void concatenar(File temporal, BufferedWriter out) throws IOException{
+
+		if (!temporal.exists())
+			return;
 
+		String str;
+		BufferedReader in = new BufferedReader(new FileReader(temporal));
+		while ((str = in.readLine()) != null){
+			out.write(str);
+			out.newLine();
+		}
+		in.close();
 	}
 
 
@@ -924,7 +1224,7 @@ public class Cat2Osm {
 				relationToWay = false;
 
 				// Empezamos comprobando la relation
-				RelationOsm relation = (RelationOsm) utils.getKeyFromValue( (Map<String, Map <Object, Long>>) ((Object)utils.getTotalRelations()), key, shape.getRelationId());
+				RelationOsm relation = utils.getRelation(key, shape.getRelationId());
 
 				if (relation != null){
 
@@ -947,7 +1247,7 @@ public class Cat2Osm {
 					// Recorremos todos los ways que componen la relation
 					for (Long wayId : relation.getIds()){
 
-						WayOsm way = (WayOsm) utils.getKeyFromValue( (Map<String, Map <Object, Long>>) ((Object)utils.getTotalWays()), key, wayId);
+						WayOsm way = utils.getWay(key, wayId);
 
 						if (way != null && waysOK){
 
@@ -963,7 +1263,7 @@ public class Cat2Osm {
 							// Recorremos todos los nodos del way y los imprimimos
 							for (Long nodeId : way.getNodes()){
 
-								NodeOsm node = (NodeOsm) utils.getKeyFromValue( (Map<String, Map <Object, Long>>) ((Object)utils.getTotalNodes()), key, nodeId);
+								NodeOsm node = utils.getNode(key, nodeId);
 
 								if (node != null){
 									outNodes.write(node.printNode(nodeId)); outNodes.newLine();
@@ -1000,7 +1300,7 @@ public class Cat2Osm {
 				// Estos elementos no tienen relation ni way,
 				// solamente son un unico punto
 				
-				NodeOsm node = (NodeOsm) utils.getKeyFromValue( (Map<String, Map <Object, Long>>) ((Object)utils.getTotalNodes()), key, shape.getNodesIds(0).get(0));
+				NodeOsm node = utils.getNode(key, shape.getNodesIds(0).get(0));
 				
 				if (node != null){
 					outNodes.write(node.printNode(shape.getNodesIds(0).get(0))); outNodes.newLine();
@@ -1030,27 +1330,30 @@ public class Cat2Osm {
 	 */
 	public void catParser(String tipo, File cat, HashMap <String, List<Shape>> shapesTotales) throws IOException{
 
-		BufferedReader bufRdr = createCatReader(cat);
-		String line = null; // Para cada linea leida del archivo .cat
+		CatReader catRdr = new CatReader(cat);
 
 		int tipoRegistrosBuscar = Integer.parseInt(Config.get("TipoRegistro"));
 
+		Map<String, Map<String, List<Shape>>> indice = getIndiceRefCat(shapesTotales);
+
 		// Lectura del archivo .cat
-		while((line = bufRdr.readLine()) != null)
+		while(catRdr.siguiente())
 		{
-			// Parsear la linea leida
-			Cat c = catLineParser(line);
-			String key = "";
+			// Antes de decodificar nada se descartan los registros que no tienen referencia
+			// catastral, los que no se buscan y los de masas de las que no hay shapes
+			int tipoRegistro = catRdr.getTipoRegistro();
+			if (!tieneRefCatastral(tipoRegistro) || !(tipoRegistro == tipoRegistrosBuscar || tipoRegistrosBuscar == 0))
+				continue;
 
-			if (tipo.equals("UR") && c.getRefCatastral() != null) // El codigo de masa son los primeros 5 caracteres
-				key = c.getRefCatastral().substring(0, 5).replaceAll("[^\\p{L}\\p{N}]", "") + "-";
-			if (tipo.equals("RU") && c.getRefCatastral() != null) // El codigo de masa son los caracteres 6, 7 y 8
-				key = c.getRefCatastral().substring(6, 9).replaceAll("[^\\p{L}\\p{N}]", "") + "-";
+			String key = codigoMasa(tipo, catRdr) + "-";
 
-			if (shapesTotales.get(key) != null && (c.getTipoRegistro() == tipoRegistrosBuscar || tipoRegistrosBuscar == 0)){
+			if (shapesTotales.get(key) != null){
+
+				// Parsear la linea leida
+				Cat c = catLineParser(catRdr);
 
 				// Obtenemos los shape que coinciden con la referencia catastral de la linea leida
-				List <Shape> matches = buscarRefCat(shapesTotales.get(key), c.getRefCatastral());
+				List <Shape> matches = buscarRefCat(indice.get(key), c.getRefCatastral());
 
 				if (matches != null)
 					switch (c.getTipoRegistro()){
@@ -1099,18 +1402,17 @@ public class Cat2Osm {
 					for (Shape shape : matches)
 						if (shape != (null)){
 
-							for (Entry<RelationOsm, Long> e : utils.getTotalRelations().get(key).entrySet())
-								if (e.getValue().equals(shape.getRelationId())){
-									RelationOsm r = e.getKey();
-									r.addTags(c.getAttributes());
+							RelationOsm r = utils.getRelation(key, shape.getRelationId());
+							if (r != null){
+								r.addTags(c.getAttributes());
 
-									// Ponemos a la relacion su fecha de construccion
-									r.setFechaConstru(c.getFechaConstru());
-								}
+								// Ponemos a la relacion su fecha de construccion
+								r.setFechaConstru(c.getFechaConstru());
+							}
 						}
 			}
 		}
-		bufRdr.close();
+		catRdr.close();
 	}
 
 
@@ -1125,25 +1427,25 @@ public class Cat2Osm {
 	 */
 	public void catUsosParser(String tipo, File cat, HashMap <String, List<Shape>> shapesTotales) throws IOException{
 
-		BufferedReader bufRdr  = createCatReader(cat);
-		String line = null; // Para cada linea leida del archivo .cat
+		CatReader catRdr = new CatReader(cat);
+
+		Map<String, Map<String, List<Shape>>> indice = getIndiceRefCat(shapesTotales);
 
 		// Lectura del archivo .cat
-		while((line = bufRdr.readLine()) != null)
+		while(catRdr.siguiente())
 		{
-			Cat c = catLineParser(line);
-			String key = "";
+			// Solo interesan los registro 14, el resto se salta sin decodificarlo
+			if (catRdr.getTipoRegistro() != 14)
+				continue;
 
-			if (tipo.equals("UR") && c.getRefCatastral() != null) // El codigo de masa son los primeros 5 caracteres
-				key = c.getRefCatastral().substring(0, 5).replaceAll("[^\\p{L}\\p{N}]", "");
-			if (tipo.equals("RU") && c.getRefCatastral() != null) // El codigo de masa son los caracteres 6, 7 y 8
-				key = c.getRefCatastral().substring(6, 9).replaceAll("[^\\p{L}\\p{N}]", "");
+			String key = codigoMasa(tipo, catRdr);
 
-			// Si es registro 14
-			if (!key.equals("") && shapesTotales.get(key) != null && esNumero(line.substring(0,2)) && line.substring(0,2).equals("14")){
+			if (!key.equals("") && shapesTotales.get(key) != null){
+
+				Cat c = catLineParser(catRdr);
 
 				// Cogemos las geometrias con esa referencia catastral.
-				List<Shape> matches = buscarRefCat(shapesTotales.get(key), c.getRefCatastral());
+				List<Shape> matches = buscarRefCat(indice.get(key), c.getRefCatastral());
 
 				// Puede que no haya shapes para esa refCatastral
 				if (matches != null)
@@ -1174,9 +1476,9 @@ public class Cat2Osm {
 							}
 
 							// Anadimos la referencia catastral
-							tags.add(new String[] {"catastro:ref", c.getRefCatastral() + line.substring(44,48)});
+							tags.add(new String[] {"catastro:ref", c.getRefCatastral() + catRdr.campo(44,48)});
 
-							tags.add(new String[] {"addr:floor", line.substring(64,67).trim() });
+							tags.add(new String[] {"addr:floor", catRdr.campo(64,67).trim() });
 
 
 							// Creamos el nodo en la lista de nodos de utils, pero no se lo anadimos al shape sino luego 
@@ -1191,7 +1493,7 @@ public class Cat2Osm {
 						}
 			}
 		}
-		bufRdr.close();
+		catRdr.close();
 	}
 
 
@@ -1203,31 +1505,46 @@ public class Cat2Osm {
 	 */
 	public List<Cat> catParser(File f) throws IOException{
 
-		BufferedReader bufRdr = createCatReader(f);
-		String line = null;
+		CatReader catRdr = new CatReader(f);
 
 		List<Cat> l = new ArrayList<Cat>();
 
 		int tipoRegistro = Integer.parseInt(Config.get("tipoRegistro"));
 
-		while((line = bufRdr.readLine()) != null)
+		while(catRdr.siguiente())
 		{
-			Cat c = catLineParser(line);
 			// No todos los tipos de registros de catastro tienen FechaAlta y FechaBaja
 			// Los que no tienen, pasan el filtro
-			if ((c.getTipoRegistro() == tipoRegistro || tipoRegistro == 0) )
-				l.add(c);
+			if ((catRdr.getTipoRegistro() == tipoRegistro || tipoRegistro == 0) )
+				l.add(catLineParser(catRdr));
 		}
-		bufRdr.close();
+		catRdr.close();
 		return l;
 	}
 
-	private BufferedReader createCatReader(File archivoCat) throws IOException {
-		InputStream inputStream = new FileInputStream(archivoCat);
-		if (archivoCat.getName().toLowerCase().endsWith(".gz")){
-			inputStream = new GZIPInputStream(inputStream);
-		}
-		return new BufferedReader(new InputStreamReader(inputStream, "ISO-8859-15"));
+
+	/** Indica si el tipo de registro trae referencia catastral (en las posiciones 30 a 44)
+	 * @param tipoRegistro Tipo de registro
+	 * @return boolean de si la tiene o no
+	 */
+	private static boolean tieneRefCatastral(int tipoRegistro){
+		return tipoRegistro == 11 || (tipoRegistro >= 13 && tipoRegistro <= 17);
+	}
+
+
+	/** Saca el codigo de masa de la referencia catastral del registro actual
+	 * sin decodificar el resto de la linea
+	 * @param tipo Tipo de archivo, UR o RU
+	 * @param catRdr Lector del archivo .cat posicionado en el registro
+	 * @return Codigo de masa (sin el "-" del final) o "" si no es UR ni RU
+	 */
+	private static String codigoMasa(String tipo, CatReader catRdr){
+
+		if (tipo.equals("UR")) // El codigo de masa son los primeros 5 caracteres de la referencia
+			return catRdr.campoAlfanumerico(30, 35);
+		if (tipo.equals("RU")) // El codigo de masa son los caracteres 6, 7 y 8 de la referencia
+			return catRdr.campoAlfanumerico(36, 39);
+		return "";
 	}
 
 
@@ -1255,20 +1572,15 @@ public class Cat2Osm {
 	}
 
 
-	/** Parsea la linea del archivo .cat y devuelve un elemento Cat
-	 * @param line Linea del archivo .cat
+	/** Parsea el registro actual del archivo .cat y devuelve un elemento Cat
+	 * @param r Lector del archivo .cat posicionado en el registro
 	 * @returns Cat Elemento Cat con todos los campos leidos en la linea
 	 * @throws IOException 
 	 * @see http://www.catastro.meh.es/pdf/formatos_intercambio/catastro_fin_cat_2006.pdf
 	 */
-	private static Cat catLineParser(String line) throws IOException{
-
-		Cat c = null;
+	private static Cat catLineParser(CatReader r) throws IOException{
 
-		if (esNumero(line.substring(0,2)))
-			c = new Cat(Integer.parseInt(line.substring(0,2)));
-		else
-			c = new Cat(0);
+		Cat c = new Cat(r.getTipoRegistro());
 
 		switch(c.getTipoRegistro()){ // Formato de los tipos distintos de registro .CAT
 		case 01: {
@@ -1294,9 +1606,9 @@ public class Cat2Osm {
 			//c.addAttribute("CODIGO DEL MUNICIPIO",line.substring(25,28));
 			//c.addAttribute("catastro:ref:municipality",eliminarCerosString(line.substring(25,28)));
 			//c.addAttribute("BLANCO EXCEPTO INMUEBLES ESPECIALES",line.substring(28,30));
-			c.addAttribute("catastro:special",eliminarComillas(line.substring(28,30)));
+			c.addAttribute("catastro:special",eliminarComillas(r.campo(28,30)));
 			//c.addAttribute("PARCELA CATASTRAL",line.substring(30,44)); 
-			c.setRefCatastral(line.substring(30,44)); 
+			c.setRefCatastral(r.campo(30,44)); 
 			//c.addAttribute("CODIGO DE PROVINCIA",line.substring(50,52));
 			//c.addAttribute("catastro:ref:province",eliminarCerosString(line.substring(50,52)));
 			//c.addAttribute("NOMBRE DE PROVINCIA",line.substring(52,77));
@@ -1312,20 +1624,20 @@ public class Cat2Osm {
 			//c.addAttribute("catastro:ref:way",eliminarCerosString(line.substring(153,158)));
 			//c.addAttribute("TIPO DE VIA O SIGLA PUBLICA",line.substring(158,163));
 			//c.addAttribute("NOMBRE DE VIA PUBLICA",line.substring(163,188));
-			c.addAttribute("addr:street",nombreTipoViaParser(line.substring(158,163).trim())+" "+formatearNombreCalle(eliminarComillas(line.substring(163,188).trim())));
+			c.addAttribute("addr:street",nombreTipoViaParser(r.campo(158,163).trim())+" "+formatearNombreCalle(eliminarComillas(r.campo(163,188).trim())));
 			//c.addAttribute("PRIMER NUMERO DE POLICIA",line.substring(188,192));
 			//c.addAttribute("PRIMERA LETRA (CARACTER DE DUPLICADO)",line.substring(192,193));
-			c.addAttribute("addr:housenumber",eliminarCerosString(line.substring(188,192))+line.substring(192,193).trim());
+			c.addAttribute("addr:housenumber",eliminarCerosString(r.campo(188,192))+r.campo(192,193).trim());
 			//c.addAttribute("SEGUNDO NUMERO DE POLICIA",line.substring(193,197));
 			//c.addAttribute("SEGUNDA LETRA (CARACTER DE DUPLICADO)",line.substring(197,198));
 			//c.addAttribute("KILOMETRO (3enteros y 2decimales)",line.substring(198,203));
 			//c.addAttribute("BLOQUE",line.substring(203,207));
 			//c.addAttribute("TEXTO DE DIRECCION NO ESTRUCTURADA",line.substring(215,240));
-			c.addAttribute("name",eliminarComillas(line.substring(215,240)));
+			c.addAttribute("name",eliminarComillas(r.campo(215,240)));
 			//c.addAttribute("CODIGO POSTAL",line.substring(240,245));
-			if (!line.substring(240,245).equals("00000"))
-				c.addAttribute("addr:postcode", line.substring(240,245));
-			if (!line.substring(240,245).isEmpty() && !line.substring(240,245).equals("00000"))
+			if (!r.campo(240,245).equals("00000"))
+				c.addAttribute("addr:postcode", r.campo(240,245));
+			if (!r.campo(240,245).isEmpty() && !r.campo(240,245).equals("00000"))
 				c.addAttribute("addr:country","ES");
 			//c.addAttribute("DISTRITO MUNICIPAL",line.substring(245,247));
 			//c.addAttribute("CODIGO DEL MUNICIPIO ORIGEN EN CASO DE AGREGACION",line.substring(247,250));
@@ -1360,12 +1672,12 @@ public class Cat2Osm {
 			//c.addAttribute("catastro:ref:municipality",eliminarCerosString(line.substring(25,28)));
 			//c.addAttribute("CLASE DE LA UNIDAD CONSTRUCTIVA",line.substring(28,30));
 			//c.addAttribute("PARCELA CATASTRAL",line.substring(30,44)); 
-			c.setRefCatastral(line.substring(30,44));
+			c.setRefCatastral(r.campo(30,44));
 			//c.addAttribute("CODIGO DE LA UNIDAD CONSTRUCTIVA",line.substring(44,48));
-			if (esNumero(line.substring(44,48)) && Integer.parseInt(line.substring(44,48)) != 0)
-				c.setNumOrdenConstru(Integer.parseInt(line.substring(44,48)));
+			if (esNumero(r.campo(44,48)) && Integer.parseInt(r.campo(44,48)) != 0)
+				c.setNumOrdenConstru(Integer.parseInt(r.campo(44,48)));
 			else
-				c.setSubparce(line.substring(44,48));
+				c.setSubparce(r.campo(44,48));
 			//c.addAttribute("CODIGO DE PROVINCIA",line.substring(50,52));
 			//c.addAttribute("catastro:ref:province",eliminarCerosString(line.substring(50,52)));
 			//c.addAttribute("NOMBRE PROVINCIA",line.substring(52,77));
@@ -1391,7 +1703,7 @@ public class Cat2Osm {
 			//c.addAttribute("TEXTO DE DIRECCION NO ESTRUCTURADA",line.substring(215,240));
 			//c.addAttribute("name",eliminarComillas(line.substring(215,240).trim()));
 			//c.addAttribute("ANO DE CONSTRUCCION (AAAA)",line.substring(295,299));
-			c.setFechaConstru(Long.parseLong(line.substring(295,299)+"0101"));
+			c.setFechaConstru(Long.parseLong(r.campo(295,299)+"0101"));
 			//c.addAttribute("INDICADOR DE EXACTITUD DEL ANO DE CONTRUCCION",line.substring(299,300));
 			//c.addAttribute("SUPERFICIE DE SUELO OCUPADA POR LA UNIDAD CONSTRUCTIVA",line.substring(300,307));
 			//c.addAttribute("catastro:surface",eliminarCerosString(line.substring(300,307)));
@@ -1407,12 +1719,12 @@ public class Cat2Osm {
 			//c.addAttribute("CODIGO DEL MUNICIPIO",line.substring(25,28));
 			//c.addAttribute("catastro:ref:municipality",eliminarCerosString(line.substring(25,28)));
 			//c.addAttribute("PARCELA CATASTRAL",line.substring(30,44)); 
-			c.setRefCatastral(line.substring(30,44));
+			c.setRefCatastral(r.campo(30,44));
 			//c.addAttribute("NUMERO DE ORDEN DEL ELEMENTO DE CONSTRUCCION",line.substring(44,48));
-			if (esNumero(line.substring(44,48)) && Integer.parseInt(line.substring(44,48)) != 0)
-				c.setNumOrdenConstru(Integer.parseInt(line.substring(44,48)));
+			if (esNumero(r.campo(44,48)) && Integer.parseInt(r.campo(44,48)) != 0)
+				c.setNumOrdenConstru(Integer.parseInt(r.campo(44,48)));
 			else
-				c.setSubparce(line.substring(44,48));
+				c.setSubparce(r.campo(44,48));
 			//c.addAttribute("NUMERO DE ORDEN DEL BIEN INMUEBLE FISCAL",line.substring(50,54));
 			//c.addAttribute("CODIGO DE LA UNIDAD CONSTRUCTIVA A LA QUE ESTA ASOCIADO EL LOCAL",line.substring(54,58));
 			//c.addAttribute("BLOQUE",line.substring(58,62));
@@ -1420,14 +1732,14 @@ public class Cat2Osm {
 			//c.addAttribute("PLANTA",line.substring(64,67));
 			//c.addAttribute("PUERTA",line.substring(67,70));
 			//c.addAttribute("CODIGO DE DESTINO SEGUN CODIFICACION DGC",line.substring(70,73));
-			c.setUsoDestino(line.substring(70,73).trim());
+			c.setUsoDestino(r.campo(70,73).trim());
 			//c.addAttribute("INDICADOR DEL TIPO DE REFORMA O REHABILITACION",line.substring(73,74));
 			//c.addAttribute("ANO DE REFORMA EN CASO DE EXISTIR",line.substring(74,78));
 			//c.addAttribute("ANO DE ANTIGUEDAD EFECTIVA EN CATASTRO",line.substring(78,82)); 
 			//c.addAttribute("INDICADOR DE LOCAL INTERIOR (S/N)",line.substring(82,83));
 			//c.addAttribute("SUPERFICIE TOTAL DEL LOCAL A EFECTOS DE CATASTRO",line.substring(83,90));
-			if (esNumero(line.substring(83,90).trim()))
-				c.setArea(Double.parseDouble(line.substring(83,90).trim()));
+			if (esNumero(r.campo(83,90).trim()))
+				c.setArea(Double.parseDouble(r.campo(83,90).trim()));
 			else
 				c.setArea((double) 10);
 			//c.addAttribute("SUPERFICIA DE PORCHES Y TERRAZAS DEL LOCAL",line.substring(90,97));
@@ -1445,12 +1757,12 @@ public class Cat2Osm {
 			//c.addAttribute("catastro:ref:municipality",eliminarCerosString(line.substring(25,28)));
 			//c.addAttribute("CLASE DE BIEN INMUEBLE (UR, RU, BI)",line.substring(28,30));
 			//c.addAttribute("PARCELA CATASTRAL",line.substring(30,44)); 
-			c.setRefCatastral(line.substring(30,44));
+			c.setRefCatastral(r.campo(30,44));
 			//c.addAttribute("NUMERO SECUENCIAL DEL BIEN INMUEBLE DENTRO DE LA PARCELA",line.substring(44,48));
-			if (esNumero(line.substring(44,48)) && Integer.parseInt(line.substring(44,48)) != 0)
-				c.setNumOrdenConstru(Integer.parseInt(line.substring(44,48)));
+			if (esNumero(r.campo(44,48)) && Integer.parseInt(r.campo(44,48)) != 0)
+				c.setNumOrdenConstru(Integer.parseInt(r.campo(44,48)));
 			else
-				c.setSubparce(line.substring(44,48));
+				c.setSubparce(r.campo(44,48));
 			//c.addAttribute("PRIMER CARACTER DE CONTROL",line.substring(48,49));
 			//c.addAttribute("SEGUNDO CARACTER DE CONTROL",line.substring(49,50));
 			//c.addAttribute("NUMERO FIJO DEL BIEN INMUEBLE",line.substring(50,58));
@@ -1471,10 +1783,10 @@ public class Cat2Osm {
 			//c.addAttribute("catastro:ref:way",eliminarCerosString(line.substring(195,200)));
 			//c.addAttribute("TIPO DE VIA O SIGLA PUBLICA",line.substring(200,205));
 			//c.addAttribute("NOMBRE DE VIA PUBLICA",line.substring(205,230));
-			c.addAttribute("addr:street",nombreTipoViaParser(line.substring(200,205).trim())+" "+formatearNombreCalle(eliminarComillas(line.substring(205,230).trim())));
+			c.addAttribute("addr:street",nombreTipoViaParser(r.campo(200,205).trim())+" "+formatearNombreCalle(eliminarComillas(r.campo(205,230).trim())));
 			//c.addAttribute("PRIMER NUMERO DE POLICIA",line.substring(230,234));
 			//c.addAttribute("PRIMERA LETRA (CARACTER DE DUPLICADO)",line.substring(234,235));
-			c.addAttribute("addr:housenumber",eliminarCerosString(line.substring(230,234))+line.substring(234,235).trim());
+			c.addAttribute("addr:housenumber",eliminarCerosString(r.campo(230,234))+r.campo(234,235).trim());
 			//c.addAttribute("SEGUNDO NUMERO DE POLICIA",line.substring(235,239));
 			//c.addAttribute("SEGUNDA LETRA (CARACTER DE DUPLICADO)",line.substring(239,240));
 			//c.addAttribute("KILOMETRO (3enteros y 2decimales)",line.substring(240,245));
@@ -1483,11 +1795,11 @@ public class Cat2Osm {
 			//c.addAttribute("PLANTA",line.substring(251,254));
 			//c.addAttribute("PUERTA",line.substring(254,257));
 			//c.addAttribute("TEXTO DE DIRECCION NO ESTRUCTURADA",line.substring(257,282));
-			c.addAttribute("name",eliminarComillas(line.substring(257,282).trim()));
+			c.addAttribute("name",eliminarComillas(r.campo(257,282).trim()));
 			//c.addAttribute("CODIGO POSTAL",line.substring(282,287));
-			if (!line.substring(282,287).equals("00000"))
-				c.addAttribute("addr:postcode",line.substring(282,287));
-			if (!line.substring(282,287).isEmpty() && !line.substring(282,287).equals("00000"))
+			if (!r.campo(282,287).equals("00000"))
+				c.addAttribute("addr:postcode",r.campo(282,287));
+			if (!r.campo(282,287).isEmpty() && !r.campo(282,287).equals("00000"))
 				c.addAttribute("addr:country" ,"ES");
 			//c.addAttribute("DISTRITO MUNICIPAL",line.substring(287,289));
 			//c.addAttribute("CODIGO DEL MUNICIPIO DE ORIGEN EN CASO DE AGREGACION",line.substring(289,292));
@@ -1499,10 +1811,10 @@ public class Cat2Osm {
 			//c.addAttribute("NUMERO DE ORDEN DEL INMUEBLE EN LA ESCRITURA DE DIVISION HORIZONTAL",line.substring(367,371));
 			//c.addAttribute("ANO DE ANTIGUEDAD DEL BIEN INMUEBLE",line.substring(371,375)); 
 			//c.addAttribute("CLAVE DE GRUPO DE LOS BIENES INMUEBLES DE CARAC ESPECIALES",line.substring(427,428));
-			c.setUsoDestino(line.substring(427,428).trim());
+			c.setUsoDestino(r.campo(427,428).trim());
 			//c.addAttribute("SUPERFICIE DEL ELEMENTO O ELEMENTOS CONSTRUCTIVOS ASOCIADOS AL INMUEBLE",line.substring(441,451));
-			if (esNumero(line.substring(441,451).trim()))
-				c.setArea(Double.parseDouble(line.substring(441,451).trim()));
+			if (esNumero(r.campo(441,451).trim()))
+				c.setArea(Double.parseDouble(r.campo(441,451).trim()));
 			else
 				c.setArea((double) 10);
 			//c.addAttribute("SUPERFICIE ASOCIADA AL INMUEBLE",line.substring(451,461));
@@ -1517,12 +1829,12 @@ public class Cat2Osm {
 			//c.addAttribute("CODIGO DE DELEGACION MEH",line.substring(23,25));
 			//c.addAttribute("CODIGO DEL MUNICIPIO",line.substring(25,28));
 			//c.addAttribute("PARCELA CATASTRAL",line.substring(30,44)); 
-			c.setRefCatastral(line.substring(30,44));
+			c.setRefCatastral(r.campo(30,44));
 			//c.addAttribute("NUMERO DE ORDEN DEL ELEMENTO CUYO VALOR SE REPARTE",line.substring(44,48));
-			if (esNumero(line.substring(44,48)) && Integer.parseInt(line.substring(44,48)) != 0)
-				c.setNumOrdenConstru(Integer.parseInt(line.substring(44,48)));
+			if (esNumero(r.campo(44,48)) && Integer.parseInt(r.campo(44,48)) != 0)
+				c.setNumOrdenConstru(Integer.parseInt(r.campo(44,48)));
 			else
-				c.setSubparce(line.substring(44,48));
+				c.setSubparce(r.campo(44,48));
 			//c.addAttribute("CALIFICACION CATASTRAL DE LA SUBPARCELA",line.substring(48,50));
 			//c.addAttribute("BLOQUE REPETITIVO HASTA 15 VECES",line.substring(50,999));
 
@@ -1536,9 +1848,9 @@ public class Cat2Osm {
 			//c.addAttribute("CODIGO DEL MUNICIPIO",line.substring(25,28));
 			//c.addAttribute("NATURALEZA DEL SUELO OCUPADO POR EL CULTIVO (UR, RU)",line.substring(28,30));
 			//c.addAttribute("PARCELA CATASTRAL",line.substring(30,44)); 
-			c.setRefCatastral(line.substring(30,44));
+			c.setRefCatastral(r.campo(30,44));
 			//c.addAttribute("CODIGO DE LA SUBPARCELA",line.substring(44,48));
-			c.setSubparce(line.substring(44,48));
+			c.setSubparce(r.campo(44,48));
 			//c.addAttribute("NUMERO DE ORDEN DEL BIEN INMUEBLE FISCAL",line.substring(50,54));
 			//c.addAttribute("TIPO DE SUBPARCELA (T, A, D)",line.substring(54,55));
 			//c.addAttribute("SUPERFICIE DE LA SUBPARCELA (m cuadrad)",line.substring(55,65));
@@ -3254,23 +3566,23 @@ public class Cat2Osm {
 				if (elemtex.getNodesIds(0) != null && !elemtex.getNodesIds(0).isEmpty()){
 
 					Long nodeTexId = elemtex.getNodesIds(0).get(0);
-					NodeOsm nodeTex = ((NodeOsm) utils.getKeyFromValue( (Map<String, Map <Object, Long>>) ((Object)utils.getTotalNodes()), "ELEMTEX-189401", nodeTexId));
+					NodeOsm nodeTex = utils.getNode("ELEMTEX-189401", nodeTexId);
 
 					if (nodeTex != null){
 
 						// Si el nodo de entrada va a crearse justo sobre un nodo ya existente, lo reutilizamos
 						Coordinate coor = new Coordinate(Cat2OsmUtils.round(geomParcela.intersection(segmentoEntradaEspejo).getCoordinate().x,7), Cat2OsmUtils.round(geomParcela.intersection(segmentoEntradaEspejo).getCoordinate().y,7));
-						Long matchId = utils.getTotalNodes().get(key).get(new NodeOsm(coor));
+						Long matchId = utils.getNodeId(key, coor);
 
 						if (matchId != null){
 
-							NodeOsm match = ((NodeOsm) utils.getKeyFromValue( (Map<String, Map <Object, Long>>) ((Object)utils.getTotalNodes()), key, matchId));
+							NodeOsm match = utils.getNode(key, matchId);
 
 							match.addShapes(nodeTex.getShapes());
 							match.addTags(nodeTex.getTags());
 
 							// Insertamos el nodo con los cambios
-							utils.getTotalNodes().get(key).put(match, matchId);
+							utils.addNode(key, match, matchId);
 
 							// Borramos el nodo original del Elemtex con los datos de la entrada
 							//							List<Long> l = new ArrayList<Long>();
@@ -3310,8 +3622,8 @@ public class Cat2Osm {
 										wayTemp.setShapes(way.getShapes());
 
 										// Borramos el way de la lista general de ways
-										utils.getTotalWays().get(key).remove(way);
-										utils.getTotalNodes().get("ELEMTEX-189401").remove(nodeTex);
+										utils.removeWay(key, way);
+										utils.removeNode("ELEMTEX-189401", nodeTex);
 
 										// Actualizamos la coordenada del nodo Elemtex que tiene los tags del portal
 										nodeTex.setCoor(geomParcela.intersection(segmentoEntradaEspejo).getCoordinate());
@@ -3320,10 +3632,10 @@ public class Cat2Osm {
 										wayTemp.addNode(x+1, nodeTexId);
 
 										// Leemos el nodo de la key = "ELEMTEX-189401" y lo metemos en la nueva key que corresponde
-										utils.getTotalNodes().get(key).put(nodeTex, nodeTexId);
+										utils.addNode(key, nodeTex, nodeTexId);
 
 										// Metemos en la lista general el nuevo way con el mismo id que el que hemos borrado
-										utils.getTotalWays().get(key).put(wayTemp, wayTempId);
+										utils.addWay(key, wayTemp, wayTempId);
 
 										// Anadimos el nuevo id de nodo al shape de parcela
 										parcela.getNodesIds(0).add(x+1, nodeTexId);
@@ -1,9 +1,13 @@
 import java.math.BigDecimal;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.vividsolutions.jts.algorithm.LineIntersector;
 import com.vividsolutions.jts.algorithm.RobustLineIntersector;
@@ -12,9 +16,9 @@ import com.vividsolutions.jts.geom.Coordinate;
 
 public class Cat2OsmUtils {
 
-	private volatile static long idnode = -1;    // Comienzo de id de nodos
-	private volatile static long idway = -1;     // Comienzo de id de ways
-	private volatile static long idrelation = -1; // Comienzo de id de relations
+	private static final AtomicLong idnode = new AtomicLong(-1);    // Comienzo de id de nodos
+	private static final AtomicLong idway = new AtomicLong(-1);     // Comienzo de id de ways
+	private static final AtomicLong idrelation = new AtomicLong(-1); // Comienzo de id de relations
 	
 	// Fecha actual, leida del archivo .cat
 	private static long fechaArchivos;
@@ -29,31 +33,188 @@ public class Cat2OsmUtils {
 	private final ConcurrentHashMap <String, ConcurrentHashMap <RelationOsm, Long>> totalRelations = 
 			new ConcurrentHashMap <String, ConcurrentHashMap <RelationOsm, Long>>();
 	
+	// Indices inversos id -> elemento de las tres listas anteriores, agrupados por codigos de masa.
+	// Se mantienen a la vez que las listas para que buscar un elemento por su id no tenga
+	// que recorrer todo el mapa de la masa
+	private final ConcurrentHashMap <String, ConcurrentHashMap <Long, NodeOsm>> nodeIds = 
+			new ConcurrentHashMap <String, ConcurrentHashMap <Long, NodeOsm>>();
+	private final ConcurrentHashMap <String, ConcurrentHashMap <Long, WayOsm>> wayIds = 
+			new ConcurrentHashMap <String, ConcurrentHashMap <Long, WayOsm>>();
+	private final ConcurrentHashMap <String, ConcurrentHashMap <Long, RelationOsm>> relationIds = 
+			new ConcurrentHashMap <String, ConcurrentHashMap <Long, RelationOsm>>();
+	
+	// Indice id de way -> relations que lo tienen como member, agrupado por codigos de masa.
+	// Las relations solo pierden members, asi que basta con meterlas al crearlas
+	private final ConcurrentHashMap <String, Map <Long, List<RelationOsm>>> wayRelations = 
+			new ConcurrentHashMap <String, Map <Long, List<RelationOsm>>>();
+	
+	// Indice id de nodo -> ways de la lista de ways que lo contienen, agrupado por codigos de masa.
+	// Se mantiene al meter y sacar ways. Los ways de la lista solo cambian sin sacarse en
+	// joinWays(), que les da la vuelta con los mismos nodos, y en deleteNodes(), que les quita
+	// el nodo y a la vez su entrada del indice
+	private final ConcurrentHashMap <String, Map <Long, List<WayOsm>>> nodeWays = 
+			new ConcurrentHashMap <String, Map <Long, List<WayOsm>>>();
+	
+	// Indice coordenada (en punto fijo de 1e-7 grados) -> id de nodo, agrupado por codigos de masa.
+	// Solo tiene los nodos cuyas coordenadas estan redondeadas, que son los unicos
+	// que se pueden reutilizar al generar nodos nuevos
+	private final ConcurrentHashMap <String, CoordinateIndex> nodeCoors = 
+			new ConcurrentHashMap <String, CoordinateIndex>();
+	
+	// Cerrojos por codigo de masa. Todo lo que modifica los elementos de una masa se hace con su
+	// cerrojo cogido, asi los hilos que trabajan con masas distintas no se bloquean entre ellos
+	private final ConcurrentHashMap <String, Object> locks = new ConcurrentHashMap <String, Object>();
+	
 	// Booleanos para el modo de calcular las entradas o ver todos los Elemtex y sacar los Usos de los
 	// inmuebles que no se pueden asociar
 	private static boolean onlyEntrances = true; // Solo utilizara los portales de elemtex, en la ejecucion normal solo se usan esos.
 	private static boolean onlyUsos = false; // Para la ejecucion de mostrar usos, se pone a true
 	private static boolean onlyConstru = false; // Para la ejecucion de mostrar construs, se pone a true
 	
-	public synchronized ConcurrentHashMap <String, ConcurrentHashMap<NodeOsm, Long>> getTotalNodes() {
+	/** Devuelve el cerrojo de un codigo de masa, creandolo si no existe
+	 * @param codigo Codigo de masa
+	 * @return Objeto sobre el que sincronizar
+	 */
+	public Object getLock(String codigo){
+		Object lock = locks.get(codigo);
+		if (lock == null){
+			Object nuevo = new Object();
+			lock = locks.putIfAbsent(codigo, nuevo);
+			if (lock == null)
+				lock = nuevo;
+		}
+		return lock;
+	}
+	
+	public ConcurrentHashMap <String, ConcurrentHashMap<NodeOsm, Long>> getTotalNodes() {
 		return totalNodes;
 	}
 	
-	public synchronized void addNode(String codigo, NodeOsm n, Long idnode){
-		if (totalNodes.get(codigo) == null)
-			totalNodes.put(codigo, new ConcurrentHashMap<NodeOsm, Long>());
-		totalNodes.get(codigo).put(n, idnode);
+	public void addNode(String codigo, NodeOsm n, Long idnode){
+		synchronized (getLock(codigo)){
+			if (totalNodes.get(codigo) == null)
+				totalNodes.put(codigo, new ConcurrentHashMap<NodeOsm, Long>());
+			if (nodeIds.get(codigo) == null)
+				nodeIds.put(codigo, new ConcurrentHashMap<Long, NodeOsm>());
+			if (nodeCoors.get(codigo) == null)
+				nodeCoors.put(codigo, new CoordinateIndex());
+			indexar(totalNodes.get(codigo), nodeIds.get(codigo), n, idnode);
+		
+			Coordinate c = n.getCoor();
+			if (CoordinateIndex.enRejilla(c.x) && CoordinateIndex.enRejilla(c.y))
+				nodeCoors.get(codigo).put(CoordinateIndex.aFijo(c.x), CoordinateIndex.aFijo(c.y), idnode);
+		}
+	}
+	
+	/** Borra un nodo de la lista de nodos y de su indice
+	 * @param codigo Codigo de masa
+	 * @param n Nodo a borrar
+	 * @return id que tenia el nodo o null si no estaba
+	 */
+	public Long removeNode(String codigo, NodeOsm n){
+		synchronized (getLock(codigo)){
+			Long id = desindexar(totalNodes.get(codigo), nodeIds.get(codigo), n);
+		
+			if (id != null && nodeCoors.get(codigo) != null)
+				nodeCoors.get(codigo).remove(CoordinateIndex.aFijo(n.getX()), CoordinateIndex.aFijo(n.getY()), id);
+		
+			return id;
+		}
+	}
+	
+	/** Devuelve el id del nodo que esta en esas coordenadas
+	 * @param codigo Codigo de masa
+	 * @param c Coordenadas del nodo
+	 * @return id del nodo o null si no existe
+	 */
+	public Long getNodeId(String codigo, Coordinate c){
+		synchronized (getLock(codigo)){
+		
+			if (totalNodes.get(codigo) == null)
+				return null;
+		
+			// Si las coordenadas no estan redondeadas no pueden estar en el indice
+			if (!CoordinateIndex.enRejilla(c.x) || !CoordinateIndex.enRejilla(c.y))
+				return totalNodes.get(codigo).get(new NodeOsm(c));
+		
+			long id = nodeCoors.get(codigo).get(CoordinateIndex.aFijo(c.x), CoordinateIndex.aFijo(c.y));
+			return id != 0 ? id : null;
+		}
 	}
 	
-	public synchronized ConcurrentHashMap <String, ConcurrentHashMap<WayOsm, Long>> getTotalWays() {
+	/** Devuelve el nodo con ese id
+	 * @param codigo Codigo de masa
+	 * @param id Id del nodo
+	 * @return NodeOsm o null si no existe
+	 */
+	public NodeOsm getNode(String codigo, Long id){
+		return buscar(nodeIds.get(codigo), id);
+	}
+	
+	public ConcurrentHashMap <String, ConcurrentHashMap<WayOsm, Long>> getTotalWays() {
 		return totalWays;
 	}
 	
 	
-	public synchronized void addWay(String codigo, WayOsm w, Long idway){
-		if (totalWays.get(codigo) == null)
-			totalWays.put(codigo, new ConcurrentHashMap<WayOsm, Long>());
-		totalWays.get(codigo).put(w, idway);
+	public void addWay(String codigo, WayOsm w, Long idway){
+		synchronized (getLock(codigo)){
+			if (totalWays.get(codigo) == null)
+				totalWays.put(codigo, new ConcurrentHashMap<WayOsm, Long>());
+			if (wayIds.get(codigo) == null)
+				wayIds.put(codigo, new ConcurrentHashMap<Long, WayOsm>());
+			if (nodeWays.get(codigo) == null)
+				nodeWays.put(codigo, new HashMap<Long, List<WayOsm>>());
+			indexar(totalWays.get(codigo), wayIds.get(codigo), w, idway);
+		
+			// Si ya habia uno igual se conserva ese, que ya esta en el indice de nodos
+			if (wayIds.get(codigo).get(idway) == w)
+				for (Long nodeId : w.getNodes()){
+					List<WayOsm> l = nodeWays.get(codigo).get(nodeId);
+					if (l == null){
+						l = new ArrayList<WayOsm>(2);
+						nodeWays.get(codigo).put(nodeId, l);
+					}
+					if (!contiene(l, w))
+						l.add(w);
+				}
+		}
+	}
+	
+	
+	/** Borra un way de la lista de ways y de su indice
+	 * @param codigo Codigo de masa
+	 * @param w Way a borrar
+	 * @return id que tenia el way o null si no estaba
+	 */
+	public Long removeWay(String codigo, WayOsm w){
+		synchronized (getLock(codigo)){
+		
+			// El que se saca de la lista es el que estaba guardado, que puede ser otro objeto igual
+			WayOsm guardado = totalWays.get(codigo) != null && w != null ? buscar(wayIds.get(codigo), totalWays.get(codigo).get(w)) : null;
+		
+			Long id = desindexar(totalWays.get(codigo), wayIds.get(codigo), w);
+		
+			if (id != null && guardado != null && nodeWays.get(codigo) != null)
+				for (Long nodeId : guardado.getNodes()){
+					List<WayOsm> l = nodeWays.get(codigo).get(nodeId);
+					if (l != null)
+						for (int x = l.size()-1; x >= 0; x--)
+							if (l.get(x) == guardado)
+								l.remove(x);
+				}
+		
+			return id;
+		}
+	}
+	
+	
+	/** Devuelve el way con ese id
+	 * @param codigo Codigo de masa
+	 * @param id Id del way
+	 * @return WayOsm o null si no existe
+	 */
+	public WayOsm getWay(String codigo, Long id){
+		return buscar(wayIds.get(codigo), id);
 	}
 	
 	
@@ -62,10 +223,31 @@ public class Cat2OsmUtils {
 	 * @param key Codigo de masa
 	 * @param w Way a borrar
 	 */
-	public synchronized void deleteWayFromRelations(String key, WayOsm w){
+	public void deleteWayFromRelations(String key, WayOsm w){
+		synchronized (getLock(key)){
+		
+			Long id = totalWays.get(key).get(w);
+		
+			// Sin id solo se pueden borrar los members nulos, que no estan en el indice
+			if (id == null){
+				for (RelationOsm relation : totalRelations.get(key).keySet())
+					relation.removeMember(id);
+				return;
+			}
 		
-		for (RelationOsm relation : totalRelations.get(key).keySet())
-			relation.removeMember(totalWays.get(key).get(w));
+			List<RelationOsm> relations = wayRelations.get(key) != null ? wayRelations.get(key).get(id) : null;
+			if (relations != null){
+				for (int x = relations.size()-1; x >= 0; x--){
+					relations.get(x).removeMember(id);
+					// removeMember solo quita una aparicion, si el way estaba repetido en la
+					// relation esta se queda en el indice
+					if (!relations.get(x).getIds().contains(id))
+						relations.remove(x);
+				}
+				if (relations.isEmpty())
+					wayRelations.get(key).remove(id);
+			}
+		}
 	}
 	
 	
@@ -86,128 +268,261 @@ public class Cat2OsmUtils {
 	 * @param w2 Way2
 	 * @return long Id de way que hay que eliminar de los shapes, porque se ha juntado al otro
 	 */
-	public synchronized WayOsm joinWays(String key, WayOsm w1, WayOsm w2){
+	public WayOsm joinWays(String key, WayOsm w1, WayOsm w2){
+		synchronized (getLock(key)){
 		
-		if ( !w1.getNodes().isEmpty() && !w2.getNodes().isEmpty()){
+			if ( !w1.getNodes().isEmpty() && !w2.getNodes().isEmpty()){
 			
-			if (totalWays.get(key).get(w1) != null && totalWays.get(key).get(w2) != null)
+				if (totalWays.get(key).get(w1) != null && totalWays.get(key).get(w2) != null)
 			
-			// Caso1: w1.final = w2.primero
-			if ( w1.getNodes().get(w1.getNodes().size()-1).equals(w2.getNodes().get(0))){
+				// Caso1: w1.final = w2.primero
+				if ( w1.getNodes().get(w1.getNodes().size()-1).equals(w2.getNodes().get(0))){
 				
-				// Clonamos el way al que le anadiremos los nodos, w1
-				long idWay1 = totalWays.get(key).get(w1);
-				WayOsm w3 = new WayOsm(null);
-				for (Long lo : w1.getNodes())
-					w3.addNode(lo);
-				w3.setShapes(w1.getShapes());
+					// Clonamos el way al que le anadiremos los nodos, w1
+					long idWay1 = totalWays.get(key).get(w1);
+					WayOsm w3 = new WayOsm(null);
+					for (Long lo : w1.getNodes())
+						w3.addNode(lo);
+					w3.setShapes(w1.getShapes());
 				
-				// Copiamos la lista de nodos del way que eliminaremos, w2
-				List<Long> nodes = new ArrayList<Long>();
-				for (Long lo : w2.getNodes())
-					nodes.add(lo);
+					// Copiamos la lista de nodos del way que eliminaremos, w2
+					List<Long> nodes = new ArrayList<Long>();
+					for (Long lo : w2.getNodes())
+						nodes.add(lo);
 				
-				// Eliminamos el nodo que comparten de la lista de nodos
-				nodes.remove(w2.getNodes().get(0));
+					// Eliminamos el nodo que comparten de la lista de nodos
+					nodes.remove(w2.getNodes().get(0));
 				
-				// Concatenamos al final del way3 (copia del way1) los nodos del way2
-				w3.addNodes(nodes);
+					// Concatenamos al final del way3 (copia del way1) los nodos del way2
+					w3.addNodes(nodes);
 				
-				// Borramos el w1 del mapa de ways porque se va a meter el w3 (que es el w1 con los nuevos
-				// nodos concatenados)
-				totalWays.get(key).remove(w1);
+					// Borramos el w1 del mapa de ways porque se va a meter el w3 (que es el w1 con los nuevos
+					// nodos concatenados)
+					removeWay(key, w1);
 				
-				// Borramos el w2 de las relaciones pero no del mapa porque hace falta para el return
-				deleteWayFromRelations(key, w2);
+					// Borramos el w2 de las relaciones pero no del mapa porque hace falta para el return
+					deleteWayFromRelations(key, w2);
 				
-				// Guardamos way3 en la lista de ways, manteniendo el id del way1
-				totalWays.get(key).put(w3, idWay1);
+					// Guardamos way3 en la lista de ways, manteniendo el id del way1
+					addWay(key, w3, idWay1);
 				
-				return w2;
-			}
+					return w2;
+				}
 			
-			// Caso2: w1.primero = w2.final
-			else if (w1.getNodes().get(0).equals(w2.getNodes().get(w2.getNodes().size()-1))){
+				// Caso2: w1.primero = w2.final
+				else if (w1.getNodes().get(0).equals(w2.getNodes().get(w2.getNodes().size()-1))){
 				
-				// Es igual que el Caso1 pero cambiados de orden.
-				return joinWays(key, w2, w1);
-			}
-			// Caso3: w1.primero = w2.primero
-			else if (w1.getNodes().get(0).equals(w2.getNodes().get(0))){
+					// Es igual que el Caso1 pero cambiados de orden.
+					return joinWays(key, w2, w1);
+				}
+				// Caso3: w1.primero = w2.primero
+				else if (w1.getNodes().get(0).equals(w2.getNodes().get(0))){
 				
-				// Clonamos el way al que le anadiremos los nodos, w1
-				long idWay1 = totalWays.get(key).get(w1);
-				WayOsm w3 = new WayOsm(null);
-				for (Long lo : w1.getNodes())
-					w3.addNode(lo);
-				w3.setShapes(w1.getShapes());
+					// Clonamos el way al que le anadiremos los nodos, w1
+					long idWay1 = totalWays.get(key).get(w1);
+					WayOsm w3 = new WayOsm(null);
+					for (Long lo : w1.getNodes())
+						w3.addNode(lo);
+					w3.setShapes(w1.getShapes());
 				
-				// Copiamos la lista de nodos del way que eliminaremos, w2
-				List<Long> nodes = new ArrayList<Long>();
-				for (Long lo : w2.getNodes())
-					nodes.add(lo);
+					// Copiamos la lista de nodos del way que eliminaremos, w2
+					List<Long> nodes = new ArrayList<Long>();
+					for (Long lo : w2.getNodes())
+						nodes.add(lo);
 				
-				// Eliminamos el nodo que comparten de la lista de nodos
-				nodes.remove(w2.getNodes().get(0));
+					// Eliminamos el nodo que comparten de la lista de nodos
+					nodes.remove(w2.getNodes().get(0));
 				
-				// Damos la vuelta a la lista de nodos que hay que concatenar en la posicion 0 del
-				// way que vamos a conservar
-				Collections.reverse(nodes);
+					// Damos la vuelta a la lista de nodos que hay que concatenar en la posicion 0 del
+					// way que vamos a conservar
+					Collections.reverse(nodes);
 				
-				// Concatenamos al principio del way3 (copia del way1) los nodos del way2
-				w3.addNodes(nodes, 0);
+					// Concatenamos al principio del way3 (copia del way1) los nodos del way2
+					w3.addNodes(nodes, 0);
 				
-				// Borramos el w1 del mapa de ways porque se va a meter el w3 (que es el w1 con los nuevos
-				// nodos concatenados)
-				totalWays.get(key).remove(w1);
+					// Borramos el w1 del mapa de ways porque se va a meter el w3 (que es el w1 con los nuevos
+					// nodos concatenados)
+					removeWay(key, w1);
 				
-				// Borramos el w2 de las relaciones pero no del mapa porque hace falta para el return
-				deleteWayFromRelations(key, w2);
+					// Borramos el w2 de las relaciones pero no del mapa porque hace falta para el return
+					deleteWayFromRelations(key, w2);
 				
-				// Guardamos way3 en la lista de ways, manteniendo el id del way1
-				totalWays.get(key).put(w3, idWay1);
+					// Guardamos way3 en la lista de ways, manteniendo el id del way1
+					addWay(key, w3, idWay1);
 				
-				return w2;
+					return w2;
 				
-				}
-			// Caso4: w1.final = w2.final
-			else if (w1.getNodes().get(w1.getNodes().size()-1).equals(w2.getNodes().get(w2.getNodes().size()-1))){
+					}
+				// Caso4: w1.final = w2.final
+				else if (w1.getNodes().get(w1.getNodes().size()-1).equals(w2.getNodes().get(w2.getNodes().size()-1))){
 				
-				// Es igual que el Caso3 pero invirtiendo las dos vias
-				w1.reverseNodes();
-				w2.reverseNodes();
+					// Es igual que el Caso3 pero invirtiendo las dos vias
+					w1.reverseNodes();
+					w2.reverseNodes();
 				
-				return joinWays(key, w1, w2);
+					return joinWays(key, w1, w2);
 				
-			}
-			// Si el id de alguna via ya no esta en el mapa de vias
-			else if (totalWays.get(key).get(w1) == null){
+				}
+				// Si el id de alguna via ya no esta en el mapa de vias
+				else if (totalWays.get(key).get(w1) == null){
 				
-				// Borramos el way de las relaciones
-				deleteWayFromRelations(key, w1);
+					// Borramos el way de las relaciones
+					deleteWayFromRelations(key, w1);
 				
-				return null;
-			}
-			else if (totalWays.get(key).get(w2) == null){
+					return null;
+				}
+				else if (totalWays.get(key).get(w2) == null){
 				
-				// Borramos el way de las relaciones
-				deleteWayFromRelations(key, w2);
+					// Borramos el way de las relaciones
+					deleteWayFromRelations(key, w2);
 				
-				return null;
-			}
+					return null;
+				}
 			
+			}
+			return null;
 		}
-		return null;
 	}
 	
-	public synchronized ConcurrentHashMap< String, ConcurrentHashMap<RelationOsm, Long>> getTotalRelations() {
+	public ConcurrentHashMap< String, ConcurrentHashMap<RelationOsm, Long>> getTotalRelations() {
 		return totalRelations;
 	} 
 	
-	public synchronized void addRelation(String codigo, RelationOsm r, Long idrel){
-		if (totalRelations.get(codigo) == null)
-			totalRelations.put(codigo, new ConcurrentHashMap<RelationOsm, Long>());
-		totalRelations.get(codigo).put(r, idrel);
+	/** Vuelve a compartir los tags de todas las relaciones (ver RelationOsm.compartirTags()).
+	 * Se llama despues de leer los .cat, que dejan sin compartir las relaciones a las que anaden tags
+	 */
+	public void compartirTags(){
+		for (String codigo : relationIds.keySet())
+			compartirTags(codigo);
+	}
+	
+	/** Vuelve a compartir los tags de las relaciones de una masa, despues de anadirles tags al exportarla
+	 * @param codigo Codigo de masa
+	 */
+	public void compartirTags(String codigo){
+		if (relationIds.get(codigo) != null)
+			for (RelationOsm r : relationIds.get(codigo).values())
+				r.compartirTags();
+	}
+	
+	public void addRelation(String codigo, RelationOsm r, Long idrel){
+		synchronized (getLock(codigo)){
+			if (totalRelations.get(codigo) == null)
+				totalRelations.put(codigo, new ConcurrentHashMap<RelationOsm, Long>());
+			if (relationIds.get(codigo) == null)
+				relationIds.put(codigo, new ConcurrentHashMap<Long, RelationOsm>());
+			if (wayRelations.get(codigo) == null)
+				wayRelations.put(codigo, new HashMap<Long, List<RelationOsm>>());
+			indexar(totalRelations.get(codigo), relationIds.get(codigo), r, idrel);
+		
+			// Si ya habia una igual se conserva esa, que ya esta en el indice de members
+			if (relationIds.get(codigo).get(idrel) == r)
+				for (Long wayId : r.getIds()){
+					List<RelationOsm> l = wayRelations.get(codigo).get(wayId);
+					if (l == null){
+						l = new ArrayList<RelationOsm>();
+						wayRelations.get(codigo).put(wayId, l);
+					}
+					if (!contiene(l, r))
+						l.add(r);
+				}
+		}
+	}
+	
+	
+	/** Borra una relation de la lista de relations y de su indice
+	 * @param codigo Codigo de masa
+	 * @param r Relation a borrar
+	 * @return id que tenia la relation o null si no estaba
+	 */
+	public Long removeRelation(String codigo, RelationOsm r){
+		synchronized (getLock(codigo)){
+			Long id = desindexar(totalRelations.get(codigo), relationIds.get(codigo), r);
+		
+			if (id != null && wayRelations.get(codigo) != null)
+				for (Long wayId : r.getIds()){
+					List<RelationOsm> l = wayRelations.get(codigo).get(wayId);
+					if (l != null)
+						for (int x = l.size()-1; x >= 0; x--)
+							if (l.get(x) == r)
+								l.remove(x);
+				}
+		
+			return id;
+		}
+	}
+	
+	
+	/** Devuelve la relation con ese id
+	 * @param codigo Codigo de masa
+	 * @param id Id de la relation
+	 * @return RelationOsm o null si no existe
+	 */
+	public RelationOsm getRelation(String codigo, Long id){
+		return buscar(relationIds.get(codigo), id);
+	}
+	
+	
+	/** Mete un elemento en el mapa elemento -> id de una masa y actualiza su indice inverso.
+	 * Si en el mapa ya habia un elemento igual, el mapa conserva el que ya estaba y solo
+	 * cambia su id, por lo que el indice tiene que apuntar a ese.
+	 * @param mapa Mapa elemento -> id de la masa
+	 * @param indice Indice id -> elemento de la masa
+	 * @param elem Elemento a meter
+	 * @param id Id del elemento
+	 */
+	private static <T> void indexar(ConcurrentHashMap<T, Long> mapa, ConcurrentHashMap<Long, T> indice, T elem, Long id){
+		
+		Long anterior = mapa.put(elem, id);
+		
+		if (anterior != null){
+			T guardado = indice.remove(anterior);
+			if (guardado != null)
+				elem = guardado;
+		}
+		indice.put(id, elem);
+	}
+	
+	
+	/** Borra un elemento del mapa elemento -> id de una masa y de su indice inverso
+	 * @param mapa Mapa elemento -> id de la masa
+	 * @param indice Indice id -> elemento de la masa
+	 * @param elem Elemento a borrar
+	 * @return id que tenia el elemento o null si no estaba
+	 */
+	private static <T> Long desindexar(ConcurrentHashMap<T, Long> mapa, ConcurrentHashMap<Long, T> indice, T elem){
+		
+		if (mapa == null || elem == null)
+			return null;
+		
+		Long id = mapa.remove(elem);
+		
+		if (id != null && indice != null)
+			indice.remove(id);
+		
+		return id;
+	}
+	
+	
+	/** Comprueba si la lista tiene ese mismo objeto (no uno igual)
+	 * @param l Lista
+	 * @param elem Elemento a buscar
+	 * @return boolean de si esta o no
+	 */
+	private static <T> boolean contiene(List<T> l, T elem){
+		for (T e : l)
+			if (e == elem)
+				return true;
+		return false;
+	}
+	
+	
+	private static <T> T buscar(ConcurrentHashMap<Long, T> indice, Long id){
+		
+		if (indice == null || id == null)
+			return null;
+		
+		return indice.get(id);
 	}
 	
 
@@ -219,33 +534,33 @@ public class Cat2OsmUtils {
 	 * @param shapes Shapes a los que pertenece el nodo
 	 * @return Devuelve el id del nodo ya sea creado o el que existia
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized long generateNodeId(String key, Coordinate c, List<String[]> tags, List<String> shapes){
+	public long generateNodeId(String key, Coordinate c, List<String[]> tags, List<String> shapes){
+		synchronized (getLock(key)){
 
-		Coordinate coor = new Coordinate(round(c.x,7), round(c.y,7));
+			// Redondeamos a 7 decimales en punto fijo, sin crear objetos para buscar el nodo
+			long x = CoordinateIndex.aFijo(c.x);
+			long y = CoordinateIndex.aFijo(c.y);
 		
-		Long id = null;
+			long id = 0;
 		
-		if (totalNodes.get(key) == null)
-			totalNodes.put(key, new ConcurrentHashMap<NodeOsm, Long>());
-		
-		if (!totalNodes.get(key).isEmpty())
-			id = totalNodes.get(key).get(new NodeOsm(coor));
-		if (id != null){
-			NodeOsm n = ((NodeOsm) getKeyFromValue((Map< String, Map<Object, Long>>) ((Object) totalNodes), key, id));
-			if (tags != null)
-				n.addTags(tags);
-			n.addShapes(shapes);
-			return id;
+			if (nodeCoors.get(key) != null)
+				id = nodeCoors.get(key).get(x, y);
+			if (id != 0){
+				NodeOsm n = getNode(key, id);
+				if (tags != null)
+					n.addTags(tags);
+				n.addShapes(shapes);
+				return id;
+				}
+			else{
+				long nuevoId = idnode.decrementAndGet();
+				NodeOsm n = new NodeOsm(new Coordinate(CoordinateIndex.aGrados(x), CoordinateIndex.aGrados(y)));
+				if (tags != null)
+					n.addTags(tags);
+				n.setShapes(shapes);
+				addNode(key, n, nuevoId);
+				return nuevoId;
 			}
-		else{
-			idnode--;
-			NodeOsm n = new NodeOsm(coor);
-			if (tags != null)
-				n.addTags(tags);
-			n.setShapes(shapes);
-			totalNodes.get(key).putIfAbsent(n, idnode);
-			return idnode;
 		}
 	}
 	
@@ -257,29 +572,28 @@ public class Cat2OsmUtils {
 	 * @param shapes Lista de los shapes a los que pertenecera
 	 * @return devuelve el id del way creado o el del que ya existia
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized long generateWayId(String key, List<Long> nodes, List<String> shapes ){
+	public long generateWayId(String key, List<Long> nodes, List<String> shapes ){
+		synchronized (getLock(key)){
 
-		Long id = null;
+			if (totalWays.get(key) == null)
+				totalWays.put(key, new ConcurrentHashMap<WayOsm, Long>());
 		
-		if (totalWays.get(key) == null)
-			totalWays.put(key, new ConcurrentHashMap<WayOsm, Long>());
-		
-		if (!totalWays.isEmpty())
-			id = totalWays.get(key).get(new WayOsm(nodes));
+			// El way que se busca es el mismo que se guarda si no habia ninguno igual
+			WayOsm w = new WayOsm(nodes);
+			Long id = totalWays.get(key).get(w);
 		
-		if (id != null){
-			if (shapes != null)
-				((WayOsm) getKeyFromValue((Map< String, Map<Object, Long>>) ((Object) totalWays), key, id)).addShapes(shapes);
-			return id;
+			if (id != null){
+				if (shapes != null)
+					getWay(key, id).addShapes(shapes);
+				return id;
+				}
+			else{
+				long nuevoId = idway.decrementAndGet();
+				if (shapes != null)
+					w.addShapes(shapes);
+				addWay(key, w, nuevoId);
+				return nuevoId;
 			}
-		else{
-			idway--;
-			WayOsm w = new WayOsm(nodes);
-			if (shapes != null)
-				w.addShapes(shapes);
-			totalWays.get(key).putIfAbsent(w, idway);
-			return idway;
 		}
 	}
 	
@@ -294,40 +608,50 @@ public class Cat2OsmUtils {
 	 * @param shapesId Lista de shapes a los que pertenece
 	 * @return devuelve el id de la relacion creada o el de la que ya existia
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized long generateRelationId(String key, List<Long> ids, List<String> types, List<String> roles, List<String[]> tags, List<String> shapesId){
-		
-		Long id = null;
+	public long generateRelationId(String key, List<Long> ids, List<String> types, List<String> roles, List<String[]> tags, List<String> shapesId){
+		synchronized (getLock(key)){
 		
-		if (totalRelations.get(key) == null)
-			totalRelations.put(key, new ConcurrentHashMap<RelationOsm, Long>());
+			if (totalRelations.get(key) == null)
+				totalRelations.put(key, new ConcurrentHashMap<RelationOsm, Long>());
 		
-		if (!totalRelations.isEmpty())
-			id = totalRelations.get(key).get(new RelationOsm(ids,types,roles));
-		if (id != null){
-			if (tags != null)
-				((RelationOsm) getKeyFromValue((Map< String, Map<Object, Long>>) ((Object)totalRelations), key, id)).addTags(tags);
-			return id;
-			}
-		else{
-			idrelation--;
+			// La relation que se busca es la misma que se guarda si no habia ninguna igual
 			RelationOsm r = new RelationOsm(ids,types,roles);
-			r.setShapes(shapesId);
-			if (tags != null)
-				r.addTags(tags);
-			totalRelations.get(key).putIfAbsent(r, idrelation);
-			return idrelation;
+			Long id = totalRelations.get(key).get(r);
+			if (id != null){
+				if (tags != null){
+					getRelation(key, id).addTags(tags);
+					getRelation(key, id).compartirTags();
+				}
+				return id;
+				}
+			else{
+				long nuevoId = idrelation.decrementAndGet();
+				r.setShapes(shapesId);
+				if (tags != null)
+					r.addTags(tags);
+				r.compartirTags();
+				addRelation(key, r, nuevoId);
+				return nuevoId;
+			}
 		}
 	}
 	
-	/** Dado un Value de un Map devuelve su Key
+	/** Dado un Value de un Map devuelve su Key. Para las listas de nodos, ways y relations
+	 * se usan sus indices, para cualquier otro mapa se recorre.
 	 * @param map Mapa
 	 * @param codigo Codigo de masa
 	 * @param id Value en el map para obtener su Key
 	 * @return
 	 */
 	@SuppressWarnings("unchecked")
-	public synchronized Object getKeyFromValue(Map<String, Map <Object, Long>> map, String key, Long id){
+	public Object getKeyFromValue(Map<String, Map <Object, Long>> map, String key, Long id){
+		
+		if (map == (Object) totalNodes)
+			return getNode(key, id);
+		if (map == (Object) totalWays)
+			return getWay(key, id);
+		if (map == (Object) totalRelations)
+			return getRelation(key, id);
 		
 		if (map.get(key) == null)
 			return null;
@@ -344,12 +668,11 @@ public class Cat2OsmUtils {
 	 * ways
 	 * @return ways lista de WayOsm
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized List<WayOsm> getWays(String codigo, List<Long> ids){
+	public List<WayOsm> getWays(String codigo, List<Long> ids){
 		List<WayOsm> ways = new ArrayList<WayOsm>();
 		
 		for (Long l: ids)
-			ways.add(((WayOsm) getKeyFromValue((Map< String, Map <Object, Long>>) ((Object)totalWays), codigo, l)));
+			ways.add(getWay(codigo, l));
 		
 		ways.remove(null);
 		
@@ -361,12 +684,11 @@ public class Cat2OsmUtils {
      * nodes
      * @return nodes lista de NodeOsm
      */
-    @SuppressWarnings("unchecked")
-    public synchronized List<NodeOsm> getNodes(String key, List<Long> ids){
+    public List<NodeOsm> getNodes(String key, List<Long> ids){
         List<NodeOsm> nodes = new ArrayList<NodeOsm>();
         
         for (Long l: ids)
-        	nodes.add(((NodeOsm) getKeyFromValue((Map< String, Map <Object, Long>>) ((Object)totalNodes), key, l)));
+        	nodes.add(getNode(key, l));
         
         nodes.remove(null);
         
@@ -377,16 +699,19 @@ public class Cat2OsmUtils {
      * @param key Codigo de masa en la que estan esos nodes
      * @param ids Lista de nodos
      */
-    @SuppressWarnings("unchecked")
-    public synchronized void deleteNodes(String key, List<Long> ids){
+    public void deleteNodes(String key, List<Long> ids){
     	
-    	for (Long id : ids){
-    		
-    		NodeOsm node = ((NodeOsm) getKeyFromValue((Map< String, Map <Object, Long>>) ((Object)totalNodes), key, id));
-    		totalNodes.get(key).remove(node);
-    		
-    		for (WayOsm w : totalWays.get(key).keySet())
-    			w.getNodes().remove(id);
+    	synchronized (getLock(key)){
+    		for (Long id : ids){
+    			
+    			removeNode(key, getNode(key, id));
+    			
+    			// Solo los ways que tienen ese nodo
+    			List<WayOsm> ways = nodeWays.get(key) != null ? nodeWays.get(key).remove(id) : null;
+    			if (ways != null)
+    				for (WayOsm w : ways)
+    					w.getNodes().remove(id);
+    		}
     	}
     }
 
@@ -427,6 +752,21 @@ public class Cat2OsmUtils {
 	        return false;
 	    }
 	 
+	/** Numero de hilos a usar en los pools de trabajo. Se puede indicar con
+	 * NumHilos en el archivo de configuracion, si no se usa uno por procesador
+	 * @return Numero de hilos
+	 */
+	public static int getNumHilos() {
+		String hilos = Config.get("NumHilos", false).trim();
+		if (!hilos.isEmpty())
+			try {
+				return Math.max(1, Integer.parseInt(hilos));
+			} catch (NumberFormatException e) {
+				System.out.println("["+new Timestamp(new Date().getTime())+"] Valor de NumHilos no valido: " + hilos + ".");
+			}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
 	public static long getFechaArchivos() {
 		return fechaArchivos;
 	}
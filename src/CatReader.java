@@ -0,0 +1,329 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+
+/** Lector de los archivos .CAT de catastro registro a registro sin pasarlos a String.
+ * Los registros son de ancho fijo, asi que se lee el archivo en un buffer de bytes
+ * y de cada registro solo se decodifican (de ISO-8859-15) los campos que se piden.
+ * El tipo de registro se saca de los dos primeros bytes, de forma que los registros
+ * que no interesan se pueden saltar sin crear ningun objeto.
+ * Los campos se piden con las mismas posiciones que se usarian con substring() sobre la linea.
+ * Si el archivo viene comprimido se descomprime en otro hilo mientras se van parseando los registros.
+ */
+public class CatReader implements Closeable {
+
+	// Caracter ISO-8859-15 de cada byte
+	private static final char[] CARACTERES = new char[256];
+
+	// Bytes que son letra o numero (lo mismo que [\p{L}\p{N}])
+	private static final boolean[] ALFANUMERICOS = new boolean[256];
+
+	static {
+		byte[] b = new byte[256];
+		for (int x = 0; x < 256; x++)
+			b[x] = (byte) x;
+		try {
+			new String(b, "ISO-8859-15").getChars(0, 256, CARACTERES, 0);
+		} catch (UnsupportedEncodingException e) {
+			for (int x = 0; x < 256; x++)
+				CARACTERES[x] = (char) x;
+		}
+		for (int x = 0; x < 256; x++){
+			int t = Character.getType(CARACTERES[x]);
+			ALFANUMERICOS[x] = Character.isLetter(CARACTERES[x]) || t == Character.DECIMAL_DIGIT_NUMBER
+					|| t == Character.LETTER_NUMBER || t == Character.OTHER_NUMBER;
+		}
+	}
+
+	private final InputStream in;
+	private byte[] buf = new byte[1 << 16];
+	private int limite;  // Bytes validos en buf
+	private int pos;     // Comienzo de lo que queda por leer
+	private boolean fin;
+
+	// Registro actual, bytes de buf entre inicio y final sin el salto de linea
+	private int inicio;
+	private int longitud;
+
+
+	/** Constructor
+	 * @param archivoCat Archivo .CAT, comprimido con gzip si acaba en .gz
+	 * @throws IOException
+	 */
+	public CatReader(File archivoCat) throws IOException {
+		InputStream inputStream = new FileInputStream(archivoCat);
+		if (archivoCat.getName().toLowerCase().endsWith(".gz")){
+			inputStream = new Descompresor(new GZIPInputStream(inputStream, 1 << 16), archivoCat.getName());
+		}
+		this.in = inputStream;
+	}
+
+
+	/** Avanza al siguiente registro. Acepta los mismos finales de linea
+	 * que BufferedReader.readLine() (\n, \r o \r\n)
+	 * @return false si se ha llegado al final del archivo
+	 * @throws IOException
+	 */
+	public boolean siguiente() throws IOException {
+
+		int i = pos;
+		while (true){
+			while (i < limite && buf[i] != '\n' && buf[i] != '\r')
+				i++;
+
+			if (i < limite){
+				// Si el \r es lo ultimo del buffer hay que leer mas para ver si le sigue un \n
+				if (buf[i] == '\r' && i + 1 == limite && !fin){
+					i = rellenar(i);
+					continue;
+				}
+				inicio = pos;
+				longitud = i - pos;
+				pos = i + 1;
+				if (buf[i] == '\r' && pos < limite && buf[pos] == '\n')
+					pos++;
+				return true;
+			}
+
+			if (fin){
+				if (pos == limite)
+					return false;
+				// Ultima linea sin salto de linea
+				inicio = pos;
+				longitud = limite - pos;
+				pos = limite;
+				return true;
+			}
+
+			i = rellenar(i);
+		}
+	}
+
+
+	/** Mueve lo que queda por leer al principio del buffer y lo completa con
+	 * datos del archivo, agrandandolo si no cabe una linea entera
+	 * @param i Posicion hasta la que se ha buscado el salto de linea
+	 * @return La misma posicion despues de mover el buffer
+	 * @throws IOException
+	 */
+	private int rellenar(int i) throws IOException {
+
+		if (pos > 0){
+			System.arraycopy(buf, pos, buf, 0, limite - pos);
+			i -= pos;
+			limite -= pos;
+			pos = 0;
+		}
+		if (limite == buf.length){
+			byte[] nuevo = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, nuevo, 0, limite);
+			buf = nuevo;
+		}
+
+		int n = in.read(buf, limite, buf.length - limite);
+		if (n < 0)
+			fin = true;
+		else
+			limite += n;
+
+		return i;
+	}
+
+
+	/** Longitud del registro actual */
+	public int length(){
+		return longitud;
+	}
+
+
+	/** Tipo del registro actual sacado de sus dos primeros bytes, sin decodificar la linea
+	 * @return Tipo de registro o 0 si no empieza por dos digitos
+	 */
+	public int getTipoRegistro(){
+		if (longitud < 2)
+			return 0;
+		int d1 = buf[inicio] - '0';
+		int d2 = buf[inicio + 1] - '0';
+		if (d1 < 0 || d1 > 9 || d2 < 0 || d2 > 9)
+			return 0;
+		return d1 * 10 + d2;
+	}
+
+
+	/** Decodifica un campo del registro actual, equivale a linea.substring(desde, hasta)
+	 * @param desde Posicion inicial
+	 * @param hasta Posicion final (no incluida)
+	 * @return Texto del campo
+	 */
+	public String campo(int desde, int hasta){
+		comprobarRango(desde, hasta);
+		char[] c = new char[hasta - desde];
+		for (int x = 0; x < c.length; x++)
+			c[x] = CARACTERES[buf[inicio + desde + x] & 0xFF];
+		return new String(c);
+	}
+
+
+	/** Devuelve solo las letras y numeros de un campo, equivale a
+	 * linea.substring(desde, hasta).replaceAll("[^\\p{L}\\p{N}]", "")
+	 * @param desde Posicion inicial
+	 * @param hasta Posicion final (no incluida)
+	 * @return Texto del campo sin los caracteres que no son alfanumericos
+	 */
+	public String campoAlfanumerico(int desde, int hasta){
+		comprobarRango(desde, hasta);
+		StringBuilder sb = new StringBuilder(hasta - desde + 1);
+		for (int x = inicio + desde; x < inicio + hasta; x++)
+			if (ALFANUMERICOS[buf[x] & 0xFF])
+				sb.append(CARACTERES[buf[x] & 0xFF]);
+		return sb.toString();
+	}
+
+
+	/** Decodifica el registro actual entero */
+	public String linea(){
+		return campo(0, longitud);
+	}
+
+
+	private void comprobarRango(int desde, int hasta){
+		if (desde < 0 || hasta > longitud || desde > hasta)
+			throw new StringIndexOutOfBoundsException("Campo " + desde + "-" + hasta + " fuera del registro de longitud " + longitud);
+	}
+
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+
+	/** Descomprime el gzip en un hilo propio sobre un anillo de bloques grandes que
+	 * se van pasando al hilo que parsea. Asi descomprimir y parsear van a la vez y
+	 * leer el archivo tarda lo que la mas lenta de las dos cosas y no la suma.
+	 * Solo lo debe leer un hilo.
+	 */
+	private static class Descompresor extends InputStream implements Runnable {
+
+		private static final int TAMANO_BLOQUE = 1 << 20;
+		private static final int NUM_BLOQUES = 4;
+
+		// Marca de fin de archivo en la cola de bloques llenos
+		private static final Bloque FIN = new Bloque(0);
+
+		private final InputStream gz;
+		private final ArrayBlockingQueue<Bloque> libres = new ArrayBlockingQueue<Bloque>(NUM_BLOQUES);
+		private final ArrayBlockingQueue<Bloque> llenos = new ArrayBlockingQueue<Bloque>(NUM_BLOQUES + 1);
+		private final Thread hilo;
+
+		private volatile IOException error;
+		private Bloque actual;
+		private int posActual;
+
+
+		Descompresor(InputStream gz, String nombre){
+			this.gz = gz;
+			for (int x = 0; x < NUM_BLOQUES; x++)
+				libres.add(new Bloque(TAMANO_BLOQUE));
+			hilo = new Thread(this, "Descompresor " + nombre);
+			hilo.setDaemon(true);
+			hilo.start();
+		}
+
+
+		public void run(){
+			try {
+				try {
+					Bloque b = libres.take();
+					while ((b.longitud = llenar(b.datos)) > 0){
+						llenos.put(b);
+						b = libres.take();
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+				llenos.put(FIN);
+			} catch (InterruptedException e) {
+				// Se ha cerrado el lector sin terminar de leer el archivo
+			} finally {
+				try {
+					gz.close();
+				} catch (IOException e) {
+					if (error == null)
+						error = e;
+				}
+			}
+		}
+
+
+		/** Lee del gzip hasta llenar el bloque o acabar el archivo
+		 * @return Bytes leidos, 0 si ya no quedan
+		 */
+		private int llenar(byte[] datos) throws IOException {
+			int n = 0;
+			int leidos;
+			while (n < datos.length && (leidos = gz.read(datos, n, datos.length - n)) >= 0)
+				n += leidos;
+			return n;
+		}
+
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (actual == FIN)
+				return -1;
+
+			if (actual == null || posActual == actual.longitud){
+				// Se devuelve el bloque ya leido al anillo y se espera al siguiente
+				if (actual != null)
+					libres.offer(actual);
+				try {
+					actual = llenos.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrumpida la lectura del archivo .cat");
+				}
+				posActual = 0;
+				if (actual == FIN){
+					if (error != null)
+						throw error;
+					return -1;
+				}
+			}
+
+			int n = Math.min(len, actual.longitud - posActual);
+			System.arraycopy(actual.datos, posActual, b, off, n);
+			posActual += n;
+			return n;
+		}
+
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+
+		@Override
+		public void close(){
+			hilo.interrupt();
+		}
+	}
+
+
+	private static class Bloque {
+
+		final byte[] datos;
+		int longitud;
+
+		Bloque(int tamano){
+			datos = new byte[tamano];
+		}
+	}
+}
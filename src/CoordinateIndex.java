@@ -0,0 +1,197 @@
+import java.math.BigDecimal;
+
+
+/** Tabla hash de direccionamiento abierto coordenada -> id de nodo.
+ * Las coordenadas se guardan en punto fijo de 1e-7 grados (la misma precision
+ * que usa OSM y a la que se redondean los nodos) como pares de long, de forma que
+ * buscar o meter un nodo no crea ningun objeto.
+ * No es thread-safe, el acceso lo sincroniza Cat2OsmUtils.
+ */
+public class CoordinateIndex {
+
+	/** Escala del punto fijo, 7 decimales */
+	public static final double ESCALA = 1e7;
+
+	// Como los ids de los nodos son siempre negativos, el 0 marca las posiciones libres
+	private static final long LIBRE = 0;
+
+	private long[] xs;
+	private long[] ys;
+	private long[] ids;
+	private int mascara;
+	private int size;
+
+
+	public CoordinateIndex(){
+		this(1024);
+	}
+
+
+	/** Constructor
+	 * @param capacidad Numero de coordenadas que se espera meter
+	 */
+	public CoordinateIndex(int capacidad){
+		int c = 16;
+		while (c < capacidad * 2)
+			c <<= 1;
+		xs = new long[c];
+		ys = new long[c];
+		ids = new long[c];
+		mascara = c - 1;
+	}
+
+
+	/** Pasa un valor en grados a punto fijo redondeando igual que Cat2OsmUtils.round(d, 7)
+	 * (HALF_UP sobre el valor exacto del double).
+	 * @param d Valor en grados
+	 * @return Valor en unidades de 1e-7 grados
+	 */
+	public static long aFijo(double d){
+		double a = d * ESCALA;
+		double resto = Math.abs(a - (long) a);
+
+		// El producto puede arrastrar un error de redondeo, solo importa si el valor
+		// queda casi a mitad de camino entre dos enteros. En ese caso se resuelve con BigDecimal
+		if (Math.abs(resto - 0.5) < 1e-6)
+			return new BigDecimal(d).setScale(7, BigDecimal.ROUND_HALF_UP).unscaledValue().longValue();
+
+		return a < 0 ? -Math.round(-a) : Math.round(a);
+	}
+
+
+	/** Pasa un valor en punto fijo a grados. El resultado es el mismo double
+	 * que devuelve Cat2OsmUtils.round(d, 7)
+	 * @param f Valor en unidades de 1e-7 grados
+	 * @return Valor en grados
+	 */
+	public static double aGrados(long f){
+		return f / ESCALA;
+	}
+
+
+	/** Indica si el valor ya esta redondeado a 7 decimales, es decir si
+	 * se puede representar exactamente en punto fijo
+	 * @param d Valor en grados
+	 * @return true si aGrados(aFijo(d)) == d
+	 */
+	public static boolean enRejilla(double d){
+		return aGrados(aFijo(d)) == d;
+	}
+
+
+	/** Devuelve el id del nodo con esas coordenadas
+	 * @param x Longitud en punto fijo
+	 * @param y Latitud en punto fijo
+	 * @return id del nodo o 0 si no existe
+	 */
+	public long get(long x, long y){
+		int pos = posicion(x, y);
+		while (ids[pos] != LIBRE){
+			if (xs[pos] == x && ys[pos] == y)
+				return ids[pos];
+			pos = (pos + 1) & mascara;
+		}
+		return LIBRE;
+	}
+
+
+	/** Mete o sustituye el id del nodo con esas coordenadas
+	 * @param x Longitud en punto fijo
+	 * @param y Latitud en punto fijo
+	 * @param id Id del nodo, distinto de 0
+	 */
+	public void put(long x, long y, long id){
+		int pos = posicion(x, y);
+		while (ids[pos] != LIBRE){
+			if (xs[pos] == x && ys[pos] == y){
+				ids[pos] = id;
+				return;
+			}
+			pos = (pos + 1) & mascara;
+		}
+		xs[pos] = x;
+		ys[pos] = y;
+		ids[pos] = id;
+
+		if (++size * 2 > ids.length)
+			redimensionar();
+	}
+
+
+	/** Borra la coordenada si tiene asignado ese id
+	 * @param x Longitud en punto fijo
+	 * @param y Latitud en punto fijo
+	 * @param id Id del nodo que se quiere borrar
+	 * @return true si se ha borrado
+	 */
+	public boolean remove(long x, long y, long id){
+		int pos = posicion(x, y);
+		while (ids[pos] != LIBRE){
+			if (xs[pos] == x && ys[pos] == y){
+				if (ids[pos] != id)
+					return false;
+				borrarPosicion(pos);
+				size--;
+				return true;
+			}
+			pos = (pos + 1) & mascara;
+		}
+		return false;
+	}
+
+
+	public int size(){
+		return size;
+	}
+
+
+	/** Vacia la posicion y desplaza hacia atras las entradas siguientes del mismo
+	 * bloque para no dejar huecos en las cadenas de sondeo (no hacen falta lapidas)
+	 * @param libre Posicion a vaciar
+	 */
+	private void borrarPosicion(int libre){
+		int pos = (libre + 1) & mascara;
+		while (ids[pos] != LIBRE){
+			int ideal = posicion(xs[pos], ys[pos]);
+
+			// Se puede mover si su posicion ideal no esta entre el hueco y donde esta ahora
+			if (((pos - ideal) & mascara) >= ((pos - libre) & mascara)){
+				xs[libre] = xs[pos];
+				ys[libre] = ys[pos];
+				ids[libre] = ids[pos];
+				libre = pos;
+			}
+			pos = (pos + 1) & mascara;
+		}
+		ids[libre] = LIBRE;
+	}
+
+
+	private void redimensionar(){
+		long[] oldXs = xs;
+		long[] oldYs = ys;
+		long[] oldIds = ids;
+
+		xs = new long[oldIds.length * 2];
+		ys = new long[oldIds.length * 2];
+		ids = new long[oldIds.length * 2];
+		mascara = ids.length - 1;
+
+		for (int i = 0; i < oldIds.length; i++)
+			if (oldIds[i] != LIBRE){
+				int pos = posicion(oldXs[i], oldYs[i]);
+				while (ids[pos] != LIBRE)
+					pos = (pos + 1) & mascara;
+				xs[pos] = oldXs[i];
+				ys[pos] = oldYs[i];
+				ids[pos] = oldIds[i];
+			}
+	}
+
+
+	private int posicion(long x, long y){
+		long h = x * 0x9E3779B97F4A7C15L + y;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32)) & mascara;
+	}
+}
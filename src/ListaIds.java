@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+
+/** Lista de ids (de nodos o de members) que lleva la cuenta de las veces que se ha modificado
+ * y guarda sus ids ordenados. Los ways y relaciones se comparan por sus ids sin tener en cuenta
+ * el orden, asi que la firma ordenada solo se vuelve a calcular despues de cambiar la lista
+ * y no cada vez que se llama a hashCode() o equals().
+ */
+public class ListaIds extends ArrayList<Long> {
+
+	private static final long serialVersionUID = 1L;
+
+	// Ids ordenados y version de la lista con la que se calcularon
+	private long[] firma;
+	private int versionFirma = -1;
+
+
+	public ListaIds(){
+		super();
+	}
+
+
+	public ListaIds(Collection<Long> c){
+		super(c);
+	}
+
+
+	/** Las sustituciones no cuentan como modificacion en ArrayList, pero cambian la firma
+	 */
+	@Override
+	public Long set(int index, Long element){
+		modCount++;
+		return super.set(index, element);
+	}
+
+
+	/** Devuelve los ids ordenados de menor a mayor, calculandolos solo si la lista ha
+	 * cambiado desde la ultima vez. No se debe modificar el array devuelto.
+	 * @return Ids ordenados
+	 */
+	public synchronized long[] getFirma(){
+		if (firma == null || versionFirma != modCount){
+			long[] f = new long[size()];
+			for (int x = 0; x < f.length; x++)
+				f[x] = get(x);
+			Arrays.sort(f);
+			firma = f;
+			versionFirma = modCount;
+		}
+		return firma;
+	}
+}
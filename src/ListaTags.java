@@ -0,0 +1,330 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/** Lista de tags guardados como parejas de codigos del TagDictionary (clave, valor)
+ * en un solo array de enteros, en lugar de un String[] por tag.
+ * Los valores de las claves propias de cada elemento (ver TagDictionary.esPropia()) no tienen
+ * codigo, en su lugar se guarda PROPIO y el texto va en otro array, en el mismo orden.
+ * Mantiene el orden en el que se anaden los tags.
+ * Con compartir() el array de codigos pasa a ser el mismo para todas las listas con los mismos
+ * codigos. Como los valores propios no estan en el, las listas de elementos distintos con los
+ * mismos tags lo comparten aunque cada uno tenga su id de shape o su referencia catastral.
+ * Si despues se modifica la lista, primero se copia el array (copia en escritura) y la lista
+ * sigue siendo modificable hasta que se vuelva a compartir.
+ */
+public class ListaTags {
+
+	// Arrays de codigos compartidos, repartidos en varias tablas segun su hash para que los
+	// hilos que comparten a la vez no esperen todos al mismo cerrojo. Se guardan con referencias
+	// debiles para que las combinaciones que ya no usa ningun elemento se puedan liberar
+	private static final int NUM_TABLAS = 64;
+	private static final List<Map<Compartida, WeakReference<Compartida>>> compartidas = new ArrayList<Map<Compartida, WeakReference<Compartida>>>(NUM_TABLAS);
+	static {
+		for (int x = 0; x < NUM_TABLAS; x++)
+			compartidas.add(new WeakHashMap<Compartida, WeakReference<Compartida>>());
+	}
+
+	// Todas las listas empiezan compartiendo la vacia
+	private static final Compartida VACIA = buscarCompartida(new int[0]);
+
+	// Tags a partir de los que se indexan las claves, con menos es mas rapido recorrerlos
+	private static final int MIN_INDICE = 8;
+
+	// Codigo que se guarda como valor cuando el valor es un texto propio del elemento
+	public static final int PROPIO = -2;
+
+	// Clave y valor de cada tag uno detras de otro
+	private int[] codigos;
+	private int num = 0;
+	private Compartida compartida; // Si no es null, codigos es su array y hay que copiarlo antes de escribir
+	private String[] propios = null; // Valores de los tags con valor PROPIO, en orden
+	private int numPropios = 0;
+
+	// Indice de claves, tabla abierta con la primera posicion + 1 de cada clave, en negativo si
+	// la clave esta mas de una vez. Solo en las listas modificables, se crea al buscar una clave,
+	// se mantiene al anadir tags, asi sirve para todas las llamadas a addTags() de la relacion,
+	// y se tira si se borra algun tag o se comparte la lista
+	private int[] indice = null;
+	private int numIndice = 0;
+
+
+	public ListaTags(){
+		compartida = VACIA;
+		codigos = VACIA.codigos;
+	}
+
+
+	/** Pasa a usar el array compartido con los mismos codigos que la lista, o comparte
+	 * el suyo si no habia ninguno. Hasta que se vuelva a modificar, la lista no ocupa mas
+	 * que sus valores propios.
+	 */
+	public void compartir(){
+
+		if (compartida != null)
+			return;
+
+		compartida = buscarCompartida(Arrays.copyOf(codigos, 2*num));
+		codigos = compartida.codigos;
+		indice = null;
+
+		// Se recortan los propios para no guardar huecos en las que se van a quedar
+		if (numPropios == 0)
+			propios = null;
+		else if (numPropios < propios.length)
+			propios = Arrays.copyOf(propios, numPropios);
+	}
+
+
+	/** Devuelve el array compartido igual al dado, guardando este si no habia ninguno
+	 * @param codigos Codigos sin huecos al final
+	 * @return Array compartido
+	 */
+	private static Compartida buscarCompartida(int[] codigos){
+
+		Compartida nueva = new Compartida(codigos);
+		Map<Compartida, WeakReference<Compartida>> tabla = compartidas.get((nueva.hash & 0x7fffffff) % NUM_TABLAS);
+
+		synchronized (tabla){
+			WeakReference<Compartida> ref = tabla.get(nueva);
+			Compartida existente = ref != null ? ref.get() : null;
+			if (existente != null)
+				return existente;
+			tabla.put(nueva, new WeakReference<Compartida>(nueva));
+			return nueva;
+		}
+	}
+
+
+	public int size(){
+		return num;
+	}
+
+
+	public boolean isEmpty(){
+		return num == 0;
+	}
+
+
+	/** Codigo de la clave del tag x */
+	public int getClave(int x){
+		comprobarRango(x);
+		return codigos[2*x];
+	}
+
+
+	/** Codigo del valor del tag x, PROPIO si el valor es un texto propio del elemento */
+	public int getValor(int x){
+		comprobarRango(x);
+		return codigos[2*x+1];
+	}
+
+
+	/** Cambia el valor del tag x
+	 * @param x Posicion del tag
+	 * @param valor Texto del valor
+	 */
+	public void setValor(int x, String valor){
+		comprobarRango(x);
+		if (codigos[2*x+1] == PROPIO)
+			propios[rangoPropio(x)] = valor;
+		else {
+			int codigo = TagDictionary.codigo(valor);
+			if (codigos[2*x+1] != codigo){
+				copiarCompartida();
+				codigos[2*x+1] = codigo;
+			}
+		}
+	}
+
+
+	/** Anade un tag al final
+	 * @param clave Codigo de la clave
+	 * @param valor Texto del valor
+	 */
+	public void add(int clave, String valor){
+		copiarCompartida();
+		if (2*num == codigos.length)
+			codigos = Arrays.copyOf(codigos, Math.max(8, codigos.length * 2));
+		codigos[2*num] = clave;
+		if (TagDictionary.esPropia(clave)){
+			if (propios == null)
+				propios = new String[2];
+			else if (numPropios == propios.length)
+				propios = Arrays.copyOf(propios, propios.length * 2);
+			propios[numPropios++] = valor;
+			codigos[2*num+1] = PROPIO;
+		}
+		else
+			codigos[2*num+1] = TagDictionary.codigo(valor);
+		if (indice != null)
+			indexar(clave, num);
+		num++;
+	}
+
+
+	/** Borra el tag x desplazando los siguientes a la izquierda */
+	public void remove(int x){
+		comprobarRango(x);
+		copiarCompartida();
+		if (codigos[2*x+1] == PROPIO){
+			int p = rangoPropio(x);
+			System.arraycopy(propios, p+1, propios, p, numPropios-p-1);
+			propios[--numPropios] = null;
+		}
+		System.arraycopy(codigos, 2*x+2, codigos, 2*x, 2*(num-x-1));
+		num--;
+		indice = null;
+	}
+
+
+	/** Busca la primera posicion de una clave
+	 * @param clave Codigo de la clave
+	 * @return Posicion del primer tag con esa clave o -1 si no hay ninguno
+	 */
+	public int indexOf(int clave){
+
+		if (num < MIN_INDICE || compartida != null){
+			for (int x = 0; x < num; x++)
+				if (codigos[2*x] == clave)
+					return x;
+			return -1;
+		}
+
+		if (indice == null){
+			indice = new int[Integer.highestOneBit(num) * 4];
+			numIndice = 0;
+			for (int x = 0; x < num; x++)
+				indexar(codigos[2*x], x);
+		}
+
+		return Math.abs(indice[hueco(clave)]) - 1;
+	}
+
+
+	/** Comprueba si la lista tiene un tag. No sirve para las claves propias
+	 * @param clave Codigo de la clave
+	 * @param valor Codigo del valor
+	 * @return true si hay algun tag con esa clave y ese valor
+	 */
+	public boolean contiene(int clave, int valor){
+
+		int x = indexOf(clave);
+		if (x < 0)
+			return false;
+		if (codigos[2*x+1] == valor)
+			return true;
+
+		// Si la clave solo esta una vez no hace falta seguir buscando
+		if (indice != null && indice[hueco(clave)] > 0)
+			return false;
+
+		for (x++; x < num; x++)
+			if (codigos[2*x] == clave && codigos[2*x+1] == valor)
+				return true;
+		return false;
+	}
+
+
+	/** Devuelve los tags como textos, en una lista nueva con un String[] {clave, valor} por tag
+	 * @return Lista de tags
+	 */
+	public List<String[]> toList(){
+		List<String[]> l = new ArrayList<String[]>(num);
+		int p = 0;
+		for (int x = 0; x < num; x++)
+			if (codigos[2*x+1] == PROPIO)
+				l.add(new String[]{TagDictionary.texto(codigos[2*x]), propios[p++]});
+			else
+				l.add(new String[]{TagDictionary.texto(codigos[2*x]), TagDictionary.texto(codigos[2*x+1])});
+		return l;
+	}
+
+
+	/** Posicion en propios del valor del tag x, que tiene que ser PROPIO */
+	private int rangoPropio(int x){
+		int p = 0;
+		for (int y = 0; y < x; y++)
+			if (codigos[2*y+1] == PROPIO)
+				p++;
+		return p;
+	}
+
+
+	/** Hueco del indice donde esta la clave, o el hueco vacio donde iria si no esta */
+	private int hueco(int clave){
+		int h = clave * 0x9E3779B9;
+		int x = (h ^ (h >>> 16)) & (indice.length - 1);
+		while (indice[x] != 0 && codigos[2*(Math.abs(indice[x]) - 1)] != clave)
+			x = (x + 1) & (indice.length - 1);
+		return x;
+	}
+
+
+	/** Mete en el indice el tag de la posicion pos, que tiene que ser la ultima indexada
+	 * @param clave Codigo de la clave del tag
+	 * @param pos Posicion del tag
+	 */
+	private void indexar(int clave, int pos){
+		int x = hueco(clave);
+		if (indice[x] > 0)
+			indice[x] = -indice[x];
+		else if (indice[x] == 0){
+			indice[x] = pos + 1;
+			// Se mantiene como mucho medio lleno, si no se rehace con el doble de huecos
+			if (++numIndice * 2 > indice.length){
+				int[] viejo = indice;
+				indice = new int[viejo.length * 2];
+				for (int v : viejo)
+					if (v != 0)
+						indice[hueco(codigos[2*(Math.abs(v) - 1)])] = v;
+			}
+		}
+	}
+
+
+	/** Si la lista esta usando un array compartido, se hace una copia propia para poder escribir */
+	private void copiarCompartida(){
+		if (compartida != null){
+			codigos = Arrays.copyOf(codigos, Math.max(8, 2*num + 2));
+			compartida = null;
+		}
+	}
+
+
+	private void comprobarRango(int x){
+		if (x < 0 || x >= num)
+			throw new IndexOutOfBoundsException("Index: " + x + ", Size: " + num);
+	}
+
+
+	/** Array de codigos compartido, no se modifica nunca */
+	private static class Compartida {
+
+		private final int[] codigos;
+		private final int hash;
+
+		Compartida(int[] codigos){
+			this.codigos = codigos;
+			this.hash = Arrays.hashCode(codigos);
+		}
+
+		@Override
+		public boolean equals(Object obj){
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			return hash == ((Compartida) obj).hash && Arrays.equals(codigos, ((Compartida) obj).codigos);
+		}
+
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+	}
+}
@@ -5,9 +5,18 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
@@ -162,8 +171,12 @@ public class Main {
 		// Lista de shapes, agrupados por codigo de masa a la que pertenecen
 		// Si es un tipo de shapes que no tienen codigo de masa se meteran en una cuyo
 		// codigo sea el nombre del archivo shapefile
-		HashMap <String, List<Shape>> shapes = new HashMap <String, List<Shape>>();
-		List<ShapeParser> parsers = new ArrayList<ShapeParser>();
+		ShapeRegistry registro = new ShapeRegistry();
+		List<Future<?>> parsers = new ArrayList<Future<?>>();
+		
+		// Pools para leer los shapefiles y para procesar los lotes de lineas que se van leyendo
+		ExecutorService lectores = Executors.newFixedThreadPool(Cat2OsmUtils.getNumHilos());
+		ExecutorService parseo = Executors.newFixedThreadPool(Cat2OsmUtils.getNumHilos());
 
 		// Recorrer los directorios Urbanos
 		File dirU = new File (Config.get("UrbanoSHPPath"));
@@ -187,7 +200,7 @@ public class Main {
 					try{
 
 						System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo "+ filesU[i].getName() +" Urbano.");
-						parsers.add(new ShapeParser("UR", new File(filesU[i] + "/" + filesU[i].getName() + ".SHP"), utils, shapes));
+						parsers.add(lectores.submit(new ShapeParser("UR", new File(filesU[i] + "/" + filesU[i].getName() + ".SHP"), utils, registro, parseo)));
 
 					}
 			catch(Exception e)
@@ -217,7 +230,7 @@ public class Main {
 						)
 					try{
 						System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo "+ filesR[i].getName() +" Rustico.");
-						parsers.add(new ShapeParser("RU", new File(filesR[i] + "/" + filesR[i].getName() + ".SHP"), utils, shapes));
+						parsers.add(lectores.submit(new ShapeParser("RU", new File(filesR[i] + "/" + filesR[i].getName() + ".SHP"), utils, registro, parseo)));
 					}
 			catch(Exception e)
 			{
@@ -227,24 +240,43 @@ public class Main {
 			System.out.println("["+new Timestamp(new Date().getTime())+"]    El directorio de shapefiles rústicos "+Config.get("RusticoSHPPath")+" no existe.");
 
 
-		for (ShapeParser sp : parsers)
-			sp.join();
+		for (Future<?> sp : parsers)
+			try {
+				sp.get();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		lectores.shutdown();
+		parseo.shutdown();
+		HashMap <String, List<Shape>> shapes = registro.getShapes();
 
 		// Leemos archivo .cat
 		// No todos los shapefiles tienen referencia catastral por lo que algunos
 		// no hay forma de relacionarlos con los registros de catastro.
+		// El urbano y el rustico se leen a la vez, cada uno en su hilo, ya que no comparten masas
 		if (archivo.equals("*") || archivo.equals("CONSTRU") || archivo.equals("PARCELA") || archivo.equals("SUBPARCE")){
+			ExecutorService lectoresCat = Executors.newFixedThreadPool(2);
+
+			System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat urbano.");
+			Future<?> catUrbano = leerCat(lectoresCat, catastro, "UR", new File(Config.get("UrbanoCATFile")), shapes, false);
+
+			System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat rústico.");
+			Future<?> catRustico = leerCat(lectoresCat, catastro, "RU", new File(Config.get("RusticoCATFile")), shapes, false);
+
 			try {
-				System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat urbano.");
-				catastro.catParser("UR", new File(Config.get("UrbanoCATFile")), shapes);
-			}catch(Exception e)
-			{System.out.println("["+new Timestamp(new Date().getTime())+"]    Fallo al leer archivo Cat urbano. " + e.getMessage());}
+				catUrbano.get();
+			}catch(ExecutionException e)
+			{System.out.println("["+new Timestamp(new Date().getTime())+"]    Fallo al leer archivo Cat urbano. " + e.getCause().getMessage());}
 
 			try {
-				System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat rústico.");
-				catastro.catParser("RU", new File(Config.get("RusticoCATFile")), shapes);
-			}catch(Exception e)
-			{System.out.println("["+new Timestamp(new Date().getTime())+"]    Fallo al leer archivo Cat rústico. " + e.getMessage());}	
+				catRustico.get();
+			}catch(ExecutionException e)
+			{System.out.println("["+new Timestamp(new Date().getTime())+"]    Fallo al leer archivo Cat rústico. " + e.getCause().getMessage());}	
+
+			lectoresCat.shutdown();
+
+			// Los tags que han anadido los .cat se quedan sin compartir hasta aqui
+			utils.compartirTags();
 		}
 
 		System.out.println("["+new Timestamp(new Date().getTime())+"] Leídos "+utils.getTotalNodes().size()+" códigos para nodos, " +
@@ -258,63 +290,53 @@ public class Main {
 			shapes = shapesTemp;
 		}
 
-		int pos = 0;
-		for (String key : utils.getTotalNodes().keySet()){
-			
-			String folder = key.startsWith("ELEM")? "elementos" : ( key.startsWith("EJES")? "ejes" : "masas" );
-
-			System.out.println("["+new Timestamp(new Date().getTime())+"] Exportando " + Config.get("ResultFileName") + "-" + key + " [" + pos++ +"/" + utils.getTotalNodes().keySet().size() + "]");
-
-			// Por si acaso si hubiera archivos de un fallo en ejecucion anterior
-			if (new File(Config.get("ResultPath") + "/" + folder + "/" + Config.get("ResultFileName") + key +"tempRelations.osm").exists()
-					&& new File(Config.get("ResultPath") + "/" + folder + "/" + Config.get("ResultFileName") + key +"tempWays.osm").exists()
-					&& new File(Config.get("ResultPath") + "/" + folder + "/" + Config.get("ResultFileName") + key +"tempNodes.osm").exists()){
-
-				System.out.println("["+new Timestamp(new Date().getTime())+"] Se han encontrado 3 archivos temporales de una posible ejecución interrumpida, se procederá a juntarlos en un archivo resultado.");
-				catastro.juntarFilesTemporales(key, folder, Config.get("ResultFileName"), outOsmGlobal);
-				System.out.println("["+new Timestamp(new Date().getTime())+"] ¡¡Terminada la exportación de " + Config.get("ResultFileName") + "!!");
-
+		// Las masas no comparten nodos, ways ni relaciones, asi que se procesan a la vez y cada una
+		// escribe sus archivos temporales y su archivo resultado. Despues se vuelcan al archivo
+		// global en orden de codigo de masa, asi sale igual termine antes la que termine
+		List<String> keys = new ArrayList<String>(new TreeSet<String>(utils.getTotalNodes().keySet()));
+		ExecutorService exportacion = Executors.newFixedThreadPool(Cat2OsmUtils.getNumHilos());
+		ExecutorService troceo = Executors.newFixedThreadPool(Cat2OsmUtils.getNumHilos());
+		Map<String, Future<Boolean>> masas = new HashMap<String, Future<Boolean>>();
+
+		// Hay masas mucho mas grandes que otras (EJES, ELEMLIN y las del centro urbano), se lanzan
+		// primero las que mas cuestan para que al final no se quede una grande sola en un hilo
+		final Map<String, Long> costes = new HashMap<String, Long>();
+		for (String key : keys)
+			costes.put(key, estimarCoste(utils, key));
+
+		List<String> orden = new ArrayList<String>(keys);
+		Collections.sort(orden, new Comparator<String>() {
+			public int compare(String k1, String k2) {
+				return costes.get(k2).compareTo(costes.get(k1));
 			}
-			else if (shapes.get(key) != null){
-
-				// Calcular los usos / destinos de las parcelas en funcion del que mas area tiene
-				if (!key.startsWith("EJES") && !key.startsWith("ELEM") ){
-					System.out.println("["+new Timestamp(new Date().getTime())+"]    Calculando usos de las parcelas.");
-					catastro.calcularUsos(key, shapes.get(key));
-				}
-
-
-				// Operacion de simplificacion de relaciones sin tags relevantes
-				if (archivo.equals("*")){
-					System.out.println("["+new Timestamp(new Date().getTime())+"]    Simplificando Relaciones sin tags relevantes.");
-					catastro.simplificarRelationsSinTags(key, shapes.get(key));
-				}
-
+		});
 
-				// Operacion de simplifiacion de vias
-				if (!key.startsWith("ELEMPUN") && !key.startsWith("ELEMTEX") ){
-					System.out.println("["+new Timestamp(new Date().getTime())+"]    Simplificando vias.");
-					catastro.simplificarWays(key, shapes.get(key));
-				}
+		for (int pos = 0; pos < orden.size(); pos++)
+			masas.put(orden.get(pos), exportarMasa(exportacion, catastro, orden.get(pos), shapes.get(orden.get(pos)), archivo, troceo, costes.get(orden.get(pos)), pos, orden.size()));
 
+		// Si falla una masa se siguen volcando las demas, pero el archivo global ya no esta completo
+		List<String> fallidas = new ArrayList<String>();
 
-				// Si son ELEMLIN o EJES, juntar todos los ways que compartan un node
-				// aunque sean de distintos shapes
-				if (key.startsWith("EJES") || key.startsWith("ELEMLIN") ){
-					System.out.println("["+new Timestamp(new Date().getTime())+"]    Uniendo shapes.");
-					catastro.unirShapes(key, shapes.get(key));
-				}
-				
-				// Escribir los datos en los archivos temporales
-				System.out.print("["+new Timestamp(new Date().getTime())+"]    Escribiendo archivos temporales.\r");
-				catastro.printResults(key, folder, shapes.get(key));
-
-				System.out.print("["+new Timestamp(new Date().getTime())+"]    Escribiendo el archivo resultado.\r");
-				catastro.juntarFilesTemporales(key, folder, Config.get("ResultFileName") + "-" + key, outOsmGlobal);
-				System.out.println("["+new Timestamp(new Date().getTime())+"]    Terminado " + Config.get("ResultFileName") + "-" + key + " [" + pos +"/" + utils.getTotalNodes().keySet().size() + "]\r");
-
+		for (String key : keys){
+			try {
+				if (masas.get(key).get())
+					catastro.volcarFilesTemporales(key, carpeta(key), outOsmGlobal);
+			} catch (ExecutionException e) {
+				System.out.println("["+new Timestamp(new Date().getTime())+"]    Fallo al exportar " + Config.get("ResultFileName") + "-" + key + ". " + e.getCause().getMessage());
+				catastro.borrarFilesMasa(key, carpeta(key));
+				fallidas.add(key);
 			}
 		}
+		exportacion.shutdown();
+		troceo.shutdown();
+
+		// No se termina un archivo global al que le faltan masas, se borra y se sale con error
+		if (!fallidas.isEmpty()){
+			outOsmGlobal.close();
+			new File(fstreamOsm).delete();
+			System.out.println("["+new Timestamp(new Date().getTime())+"] Fallo al exportar " + fallidas.size() + " masas " + fallidas + ". Se ha borrado el archivo global " + fstreamOsm + ", los archivos de las demás masas están completos.");
+			System.exit(-1);
+		}
 
 		// Terminamos el archivo global de resultado
 		outOsmGlobal.write("</osm>");outOsmGlobal.newLine();
@@ -352,8 +374,12 @@ public class Main {
 		// Lista de shapes, agrupados por codigo de masa a la que pertenecen
 		// Si es un tipo de shapes que no tienen codigo de masa se meteran en una cuyo
 		// codigo sea el nombre del archivo shapefile
-		HashMap <String, List<Shape>> shapes = new HashMap <String, List<Shape>>();
-		List<ShapeParser> parsers = new ArrayList<ShapeParser>();
+		ShapeRegistry registro = new ShapeRegistry();
+		List<Future<?>> parsers = new ArrayList<Future<?>>();
+		
+		// Pools para leer los shapefiles y para procesar los lotes de lineas que se van leyendo
+		ExecutorService lectores = Executors.newFixedThreadPool(Cat2OsmUtils.getNumHilos());
+		ExecutorService parseo = Executors.newFixedThreadPool(Cat2OsmUtils.getNumHilos());
 
 
 		// Recorrer los directorios Urbanos
@@ -367,7 +393,7 @@ public class Main {
 					try{
 
 						System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo "+ filesU[i].getName() +" Urbano.");
-						parsers.add(new ShapeParser("UR", new File(filesU[i] + "/" + filesU[i].getName() + ".SHP"), utils, shapes));
+						parsers.add(lectores.submit(new ShapeParser("UR", new File(filesU[i] + "/" + filesU[i].getName() + ".SHP"), utils, registro, parseo)));
 
 					}
 			catch(Exception e)
@@ -387,7 +413,7 @@ public class Main {
 				if ( filesR[i].getName().toUpperCase().equals("PARCELA"))
 					try{
 						System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo "+ filesR[i].getName() +" Rustico.");
-						parsers.add(new ShapeParser("RU", new File(filesR[i] + "/" + filesR[i].getName() + ".SHP"), utils, shapes));
+						parsers.add(lectores.submit(new ShapeParser("RU", new File(filesR[i] + "/" + filesR[i].getName() + ".SHP"), utils, registro, parseo)));
 					}
 			catch(Exception e)
 			{
@@ -397,23 +423,38 @@ public class Main {
 			System.out.println("["+new Timestamp(new Date().getTime())+"]    El directorio de shapefiles rústicos "+Config.get("RusticoSHPPath")+" no existe.");
 
 
-		for (ShapeParser sp : parsers)
-			sp.join();
+		for (Future<?> sp : parsers)
+			try {
+				sp.get();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		lectores.shutdown();
+		parseo.shutdown();
+		HashMap <String, List<Shape>> shapes = registro.getShapes();
 
 		// Leemos archivo .cat
 		// No todos los shapefiles tienen referencia catastral por lo que algunos
 		// no hay forma de relacionarlos con los registros de catastro.
+		ExecutorService lectoresCat = Executors.newFixedThreadPool(2);
+
+		System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat urbano.");
+		Future<?> catUrbano = leerCat(lectoresCat, catastro, "UR", new File(Config.get("UrbanoCATFile")), shapes, true);
+
+		System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat rústico.");
+		Future<?> catRustico = leerCat(lectoresCat, catastro, "RU", new File(Config.get("RusticoCATFile")), shapes, true);
+
 		try {
-			System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat urbano.");
-			catastro.catUsosParser("UR", new File(Config.get("UrbanoCATFile")), shapes);
-		}catch(Exception e)
-		{System.out.println("["+new Timestamp(new Date().getTime())+"] Fallo al leer archivo Cat urbano. " + e.getMessage());}
+			catUrbano.get();
+		}catch(ExecutionException e)
+		{System.out.println("["+new Timestamp(new Date().getTime())+"] Fallo al leer archivo Cat urbano. " + e.getCause().getMessage());}
 
 		try {
-			System.out.println("["+new Timestamp(new Date().getTime())+"] Leyendo archivo Cat rústico.");
-			catastro.catUsosParser("RU", new File(Config.get("RusticoCATFile")), shapes);
-		}catch(Exception e)
-		{System.out.println("["+new Timestamp(new Date().getTime())+"]    Fallo al leer archivo Cat rústico. " + e.getMessage());}	
+			catRustico.get();
+		}catch(ExecutionException e)
+		{System.out.println("["+new Timestamp(new Date().getTime())+"]    Fallo al leer archivo Cat rústico. " + e.getCause().getMessage());}	
+
+		lectoresCat.shutdown();
 
 
 		// Solo hay que sacar los nodos con key="USOS"
@@ -446,4 +487,131 @@ public class Main {
 
 	}
 
+
+	/** Carpeta de resultados en la que van los archivos de una masa
+	 * @param key Codigo de masa
+	 * @return elementos, ejes o masas
+	 */
+	private static String carpeta(String key){
+		return key.startsWith("ELEM")? "elementos" : ( key.startsWith("EJES")? "ejes" : "masas" );
+	}
+
+
+	/** Estima lo que va a costar exportar una masa por el numero de nodos, ways y relaciones que tiene
+	 * @param utils Clase utils con los nodos, ways y relaciones
+	 * @param key Codigo de masa
+	 * @return Numero de elementos de la masa
+	 */
+	private static long estimarCoste(Cat2OsmUtils utils, String key){
+		long coste = 0;
+		if (utils.getTotalNodes().get(key) != null)
+			coste += utils.getTotalNodes().get(key).size();
+		if (utils.getTotalWays().get(key) != null)
+			coste += utils.getTotalWays().get(key).size();
+		if (utils.getTotalRelations().get(key) != null)
+			coste += utils.getTotalRelations().get(key).size();
+		return coste;
+	}
+
+
+	/** Lanza en el pool el procesado de una masa: calcula los usos, simplifica y escribe sus archivos
+	 * temporales y su archivo resultado. No escribe en el archivo global, eso se hace despues
+	 * con Cat2Osm.volcarFilesTemporales() en orden de masas
+	 * @param pool Pool en el que procesarla
+	 * @param catastro Cat2Osm con los datos
+	 * @param key Codigo de masa
+	 * @param shapesMasa Shapes de la masa
+	 * @param archivo Shapefile que se exporta o * para todos
+	 * @param troceo Pool para simplificar a la vez los trozos de EJES y ELEMLIN
+	 * @param coste Coste estimado de la masa, solo para mostrarlo
+	 * @param pos Posicion de la masa para mostrar el progreso
+	 * @param total Numero de masas
+	 * @return Future que devuelve si han quedado archivos temporales que volcar en el archivo global
+	 */
+	private static Future<Boolean> exportarMasa(ExecutorService pool, final Cat2Osm catastro, final String key, final List<Shape> shapesMasa, final String archivo, final ExecutorService troceo, final long coste, final int pos, final int total){
+		return pool.submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException, InterruptedException, ExecutionException {
+
+				String folder = carpeta(key);
+				long inicio = System.currentTimeMillis();
+
+				System.out.println("["+new Timestamp(new Date().getTime())+"] Exportando " + Config.get("ResultFileName") + "-" + key + " [" + pos +"/" + total + "]. Coste estimado = " + coste + " elementos.");
+
+				// Por si acaso si hubiera archivos de un fallo en ejecucion anterior
+				if (new File(Config.get("ResultPath") + "/" + folder + "/" + Config.get("ResultFileName") + key +"tempRelations.osm").exists()
+						&& new File(Config.get("ResultPath") + "/" + folder + "/" + Config.get("ResultFileName") + key +"tempWays.osm").exists()
+						&& new File(Config.get("ResultPath") + "/" + folder + "/" + Config.get("ResultFileName") + key +"tempNodes.osm").exists()){
+
+					System.out.println("["+new Timestamp(new Date().getTime())+"] Se han encontrado 3 archivos temporales de una posible ejecución interrumpida, se procederá a juntarlos en un archivo resultado.");
+					catastro.escribirOsmMasa(key, folder, Config.get("ResultFileName"));
+					System.out.println("["+new Timestamp(new Date().getTime())+"] ¡¡Terminada la exportación de " + Config.get("ResultFileName") + "!!");
+					return true;
+				}
+
+				if (shapesMasa == null)
+					return false;
+
+				// Calcular los usos / destinos de las parcelas en funcion del que mas area tiene
+				if (!key.startsWith("EJES") && !key.startsWith("ELEM") ){
+					System.out.println("["+new Timestamp(new Date().getTime())+"]    Calculando usos de las parcelas de " + key + ".");
+					catastro.calcularUsos(key, shapesMasa);
+				}
+
+
+				// Operacion de simplificacion de relaciones sin tags relevantes
+				if (archivo.equals("*")){
+					System.out.println("["+new Timestamp(new Date().getTime())+"]    Simplificando Relaciones sin tags relevantes de " + key + ".");
+					catastro.simplificarRelationsSinTags(key, shapesMasa);
+				}
+
+
+				// Si son ELEMLIN o EJES, simplificar las vias y juntar todos los ways que compartan
+				// un node aunque sean de distintos shapes. Se trocean en grupos de shapes que no
+				// se tocan para hacerlo a la vez
+				if (key.startsWith("EJES") || key.startsWith("ELEMLIN") ){
+					System.out.println("["+new Timestamp(new Date().getTime())+"]    Simplificando vias y uniendo shapes de " + key + ".");
+					catastro.simplificarLineas(key, shapesMasa, troceo);
+				}
+
+				// Operacion de simplifiacion de vias
+				else if (!key.startsWith("ELEMPUN") && !key.startsWith("ELEMTEX") ){
+					System.out.println("["+new Timestamp(new Date().getTime())+"]    Simplificando vias de " + key + ".");
+					catastro.simplificarWays(key, shapesMasa);
+				}
+
+				// Escribir los datos en los archivos temporales
+				System.out.print("["+new Timestamp(new Date().getTime())+"]    Escribiendo archivos temporales de " + key + ".\r");
+				catastro.printResults(key, folder, shapesMasa);
+
+				System.out.print("["+new Timestamp(new Date().getTime())+"]    Escribiendo el archivo resultado de " + key + ".\r");
+				catastro.escribirOsmMasa(key, folder, Config.get("ResultFileName") + "-" + key);
+				System.out.println("["+new Timestamp(new Date().getTime())+"]    Terminado " + Config.get("ResultFileName") + "-" + key + " [" + (pos + 1) +"/" + total + "] en " + (System.currentTimeMillis() - inicio)/1000 + " segundos (coste estimado = " + coste + " elementos).\r");
+
+				return true;
+			}
+		});
+	}
+
+
+	/** Lanza en el pool la lectura de un archivo .cat
+	 * @param pool Pool en el que leerlo
+	 * @param catastro Cat2Osm con los datos
+	 * @param tipo UR o RU
+	 * @param cat Archivo .cat
+	 * @param shapes Shapes leidos agrupados por codigo de masa
+	 * @param usos Si solo se leen los usos de los inmuebles (catUsosParser) o todo el archivo (catParser)
+	 * @return Future para esperar a que termine
+	 */
+	private static Future<?> leerCat(ExecutorService pool, final Cat2Osm catastro, final String tipo, final File cat, final HashMap <String, List<Shape>> shapes, final boolean usos){
+		return pool.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				if (usos)
+					catastro.catUsosParser(tipo, cat, shapes);
+				else
+					catastro.catParser(tipo, cat, shapes);
+				return null;
+			}
+		});
+	}
+
 }
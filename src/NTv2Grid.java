@@ -0,0 +1,196 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+
+/** Rejilla de cambio de datum en formato NTv2 (.gsb), como las de ED50 a ETRS89
+ * del IGN que se usan con los shapefiles de catastro en ED50.
+ * Se carga una sola vez por archivo y se comparte entre todos los hilos, una vez leida
+ * solo se consulta.
+ */
+public class NTv2Grid {
+
+	// Rejillas ya leidas, por ruta del archivo
+	private static final Map<String, NTv2Grid> rejillas = new HashMap<String, NTv2Grid>();
+
+	private final List<SubGrid> subgrids = new ArrayList<SubGrid>();
+
+
+	/** Devuelve la rejilla del archivo, leyendolo solo la primera vez que se pide
+	 * @param ruta Ruta del archivo .gsb
+	 * @return Rejilla leida
+	 * @throws IOException Si no se puede leer o no tiene formato NTv2
+	 */
+	public static synchronized NTv2Grid cargar(String ruta) throws IOException {
+
+		File archivo = new File(ruta);
+		String clave = archivo.getAbsolutePath();
+
+		NTv2Grid rejilla = rejillas.get(clave);
+		if (rejilla == null){
+			InputStream in = new FileInputStream(archivo);
+			try {
+				rejilla = new NTv2Grid(IOUtils.toByteArray(in));
+			}
+			finally {
+				in.close();
+			}
+			rejillas.put(clave, rejilla);
+		}
+		return rejilla;
+	}
+
+
+	/** Constructor
+	 * @param datos Contenido del archivo .gsb
+	 * @throws IOException Si no tiene formato NTv2
+	 */
+	private NTv2Grid(byte[] datos) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(datos);
+
+		// El orden de bytes no viene indicado, se deduce de que NUM_OREC siempre vale 11
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(8) != 11)
+			buffer.order(ByteOrder.BIG_ENDIAN);
+		if (buffer.getInt(8) != 11 || !"NUM_OREC".equals(leerTexto(buffer, 0)))
+			throw new IOException("El archivo no tiene formato NTv2");
+
+		int numOrec = buffer.getInt(8);
+		int numSrec = buffer.getInt(16 + 8);
+		int numFile = buffer.getInt(32 + 8);
+
+		if (!"SECONDS".equals(leerTexto(buffer, 48 + 8)))
+			throw new IOException("Solo se soportan rejillas NTv2 en segundos");
+
+		int pos = numOrec * 16;
+
+		for (int x = 0; x < numFile; x++){
+
+			SubGrid s = new SubGrid();
+			int count = 0;
+
+			for (int y = 0; y < numSrec; y++){
+				String nombre = leerTexto(buffer, pos);
+				int valor = pos + 8;
+				switch (nombre) {
+				case "S_LAT": s.sLat = buffer.getDouble(valor); break;
+				case "N_LAT": s.nLat = buffer.getDouble(valor); break;
+				case "E_LONG": s.eLong = buffer.getDouble(valor); break;
+				case "W_LONG": s.wLong = buffer.getDouble(valor); break;
+				case "LAT_INC": s.latInc = buffer.getDouble(valor); break;
+				case "LONG_INC": s.longInc = buffer.getDouble(valor); break;
+				case "GS_COUNT": count = buffer.getInt(valor); break;
+				}
+				pos += 16;
+			}
+
+			s.filas = (int) Math.round((s.nLat - s.sLat) / s.latInc) + 1;
+			s.columnas = (int) Math.round((s.wLong - s.eLong) / s.longInc) + 1;
+			if (s.filas * s.columnas != count)
+				throw new IOException("Numero de nodos de la rejilla incorrecto");
+
+			// Cada nodo trae desplazamiento en latitud, en longitud y sus precisiones
+			s.dLat = new float[count];
+			s.dLon = new float[count];
+			for (int y = 0; y < count; y++){
+				s.dLat[y] = buffer.getFloat(pos);
+				s.dLon[y] = buffer.getFloat(pos + 4);
+				pos += 16;
+			}
+
+			subgrids.add(s);
+		}
+	}
+
+
+	/** Aplica el desplazamiento de la rejilla a unas coordenadas geograficas
+	 * @param lonLat Longitud y latitud en grados (longitud positiva hacia el este),
+	 * se sobreescriben con las coordenadas desplazadas
+	 * @return false si el punto cae fuera de la rejilla y no se ha desplazado
+	 */
+	public boolean desplazar(double[] lonLat){
+
+		// NTv2 trabaja en segundos y con la longitud positiva hacia el oeste
+		double lat = lonLat[1] * 3600;
+		double lonW = -lonLat[0] * 3600;
+
+		for (SubGrid s : subgrids)
+			if (s.contiene(lat, lonW)){
+				double[] d = s.interpolar(lat, lonW);
+				lonLat[1] = (lat + d[0]) / 3600;
+				lonLat[0] = -(lonW + d[1]) / 3600;
+				return true;
+			}
+
+		return false;
+	}
+
+
+	private static String leerTexto(ByteBuffer buffer, int pos){
+		StringBuilder sb = new StringBuilder(8);
+		for (int x = 0; x < 8; x++)
+			sb.append((char) (buffer.get(pos + x) & 0xFF));
+		return sb.toString().trim();
+	}
+
+
+	/** Subrejilla con sus limites (en segundos) y los desplazamientos de cada nodo.
+	 * Los nodos empiezan en la esquina sureste y van hacia el oeste, fila a fila hacia el norte.
+	 */
+	private static class SubGrid {
+
+		double sLat, nLat, eLong, wLong, latInc, longInc;
+		int filas, columnas;
+		float[] dLat, dLon;
+
+
+		boolean contiene(double lat, double lonW){
+			return lat >= sLat && lat <= nLat && lonW >= eLong && lonW <= wLong;
+		}
+
+
+		/** Interpolacion bilineal entre los cuatro nodos que rodean al punto
+		 * @return desplazamiento en latitud y en longitud (oeste) en segundos
+		 */
+		double[] interpolar(double lat, double lonW){
+
+			double fx = (lonW - eLong) / longInc;
+			double fy = (lat - sLat) / latInc;
+			int ix = (int) Math.floor(fx);
+			int iy = (int) Math.floor(fy);
+
+			// En el borde norte u oeste se usa la ultima celda
+			if (ix >= columnas - 1)
+				ix = columnas - 2;
+			if (iy >= filas - 1)
+				iy = filas - 2;
+			fx -= ix;
+			fy -= iy;
+
+			int n00 = iy * columnas + ix;
+			int n10 = n00 + 1;
+			int n01 = n00 + columnas;
+			int n11 = n01 + 1;
+
+			double m00 = (1 - fx) * (1 - fy);
+			double m10 = fx * (1 - fy);
+			double m01 = (1 - fx) * fy;
+			double m11 = fx * fy;
+
+			return new double[]{
+					m00 * dLat[n00] + m10 * dLat[n10] + m01 * dLat[n01] + m11 * dLat[n11],
+					m00 * dLon[n00] + m10 * dLon[n10] + m01 * dLon[n01] + m11 * dLon[n11]
+			};
+		}
+	}
+}
@@ -9,7 +9,7 @@ import com.vividsolutions.jts.geom.Coordinate;
 public class NodeOsm {
 
 	private Coordinate coor;
-	private List<String[]> tags; // Se usan para los Elemtex y Elempun
+	private ListaTags tags; // Se usan para los Elemtex y Elempun
 	private List<String> shapes; // Lista de shapes a los que pertenece
 
 	public NodeOsm(Coordinate c){
@@ -89,55 +89,40 @@ public class NodeOsm {
 		return coor.y;
 	}
 
+	/** Devuelve los tags del nodo. La lista es una copia, para cambiarlos hay que usar addTag()
+	 * @return Lista de tags o null si no tiene
+	 */
 	public List<String[]> getTags() {
 
-		if (tags != null && !tags.isEmpty()){
-			String[] s = new String[2];
-
-			s[0] = "source"; s[1] = "catastro";
-			tags.add(s);
+		if (tags == null)
+			return null;
 
-			s = new String[2];
-			s[0] = "source:date"; s[1] = Cat2OsmUtils.getFechaArchivos()+""; 
-		}
+		if (!tags.isEmpty())
+			tags.add(TagDictionary.codigo("source"), "catastro");
 
-		return tags;
+		return tags.toList();
 	}
 
 	public void addTags(List<String[]> tags) {
 		if (this.tags == null && !tags.isEmpty())
-			this.tags = new ArrayList<String[]>();
-
-			for (int x = 0; x < tags.size(); x++){
+			this.tags = new ListaTags();
 
-				boolean encontrado = false;
-				tags.get(x)[1] = tags.get(x)[1].replaceAll("\"", "");
-
-				for (int y = 0; !encontrado && y < this.tags.size(); y++)
-					if (this.tags.get(y)[0].equals(tags.get(x)[0])){
-						this.tags.get(y)[1] = tags.get(x)[1];
-						encontrado = true;
-					}
-				if (!encontrado)
-					this.tags.add(tags.get(x));
-			}
+			for (int x = 0; x < tags.size(); x++)
+				addTag(tags.get(x));
 	}
 
 	public void addTag(String[] tag){
 		if (this.tags == null)
-			this.tags = new ArrayList<String[]>();
+			this.tags = new ListaTags();
 
-			boolean encontrado = false;
-			tag[1] = tag[1].replaceAll("\"", "");
+			int clave = TagDictionary.codigo(tag[0]);
+			String valor = tag[1].replaceAll("\"", "");
 
-			for (int x = 0; !encontrado && x < this.tags.size(); x++)
-				if (this.tags.get(x)[0].equals(tag[0])){
-					this.tags.get(x)[1] = tag[1];
-					encontrado = true;
-				}
-
-			if (!encontrado)
-				this.tags.add(tag);
+			int x = this.tags.indexOf(clave);
+			if (x >= 0)
+				this.tags.setValor(x, valor);
+			else
+				this.tags.add(clave, valor);
 	}
 
 	public void setY(Coordinate c) {
@@ -162,11 +147,11 @@ public class NodeOsm {
 		s = ("<node id=\""+ id +"\" timestamp=\""+new Timestamp(new Date().getTime())+"\" version=\"6\" lat=\""+this.coor.y+"\" lon=\""+this.coor.x+"\">\n");
 
 		if (tags != null)
-			for (int x = 0; x < tags.size(); x++)
-				if (tags.get(x)[0].startsWith("CAT2OSMSHAPEID") && Config.get("PrintShapeIds").equals("1"))
-					s += "<tag k=\""+tags.get(x)[0]+"\" v=\""+tags.get(x)[1]+"\"/>\n";
-				else if (!tags.get(x)[0].startsWith("CAT2OSMSHAPEID"))
-					s += "<tag k=\""+tags.get(x)[0]+"\" v=\""+tags.get(x)[1]+"\"/>\n";	
+			for (String[] tag : tags.toList())
+				if (tag[0].startsWith("CAT2OSMSHAPEID") && Config.get("PrintShapeIds").equals("1"))
+					s += "<tag k=\""+tag[0]+"\" v=\""+tag[1]+"\"/>\n";
+				else if (!tag[0].startsWith("CAT2OSMSHAPEID"))
+					s += "<tag k=\""+tag[0]+"\" v=\""+tag[1]+"\"/>\n";	
 				
 		s += "<tag k=\"source\" v=\"catastro\"/>\n";
 		s += "<tag k=\"source:date\" v=\""+new StringBuffer(Cat2OsmUtils.getFechaArchivos()+"").insert(4, "-").toString().substring(0, 7)+"\"/>\n";
@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.geometry.jts.JTSFactoryFinder;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+
+/** Indice espacial de las parcelas para saber sobre que parcela cae un punto.
+ * Los poligonos de las parcelas se crean y se preparan una sola vez al crear el indice,
+ * asi cada consulta solo compara con las parcelas cuyo envelope contiene el punto.
+ * Tambien guarda los tags addr:housenumber de cada parcela para no buscarlos en su relacion.
+ * Una vez creado solo se consulta, asi que se puede usar desde varios hilos.
+ */
+public class ParcelIndex {
+
+	private final GeometryFactory gf = JTSFactoryFinder.getGeometryFactory(null);
+	private final STRtree index = new STRtree();
+	private final Map<ShapeParcela, List<String[]>> tagsNumero = new IdentityHashMap<ShapeParcela, List<String[]>>();
+
+
+	/** Constructor
+	 * @param shapesTotales Shapes agrupados por codigo de masa
+	 * @param utils Clase utils con las relaciones de las parcelas
+	 */
+	public ParcelIndex(HashMap <String, List<Shape>> shapesTotales, Cat2OsmUtils utils){
+
+		// Se guarda el orden en el que se recorren para que, si un punto cae en varias,
+		// se devuelva la misma que devolvia recorrer todas las parcelas
+		int orden = 0;
+
+		for (String key : shapesTotales.keySet())
+			for (Shape s : shapesTotales.get(key))
+				if (s instanceof ShapeParcela && s.getPoligons() != null && !s.getPoligons().isEmpty()){
+
+					// Cogemos el outer de la parcela que esta en la posicion[0]
+					Polygon parcela = gf.createPolygon(gf.createLinearRing(s.getPoligons().get(0).getCoordinates()), null);
+
+					index.insert(parcela.getEnvelopeInternal(), new Parcela(orden++, (ShapeParcela) s, PreparedGeometryFactory.prepare(parcela)));
+
+					List<String[]> tags = new ArrayList<String[]>();
+					RelationOsm r = utils.getRelation(key, s.getRelationId());
+					if (r != null)
+						for (String[] tag : r.getTags())
+							if (tag[0] != null && tag[0].trim().equals("addr:housenumber"))
+								tags.add(tag);
+					tagsNumero.put((ShapeParcela) s, tags);
+				}
+
+		index.build();
+	}
+
+
+	/** Devuelve la parcela sobre la que esta alguna de las coordenadas
+	 * @param coors Coordenadas que hay que comprobar
+	 * @return Parcela que coincide o null si no hay ninguna
+	 */
+	@SuppressWarnings("unchecked")
+	public ShapeParcela getParcela(List<Coordinate> coors){
+
+		Parcela encontrada = null;
+
+		for (Coordinate coor : coors){
+
+			Point point = null;
+
+			for (Parcela p : (List<Parcela>) index.query(new Envelope(coor)))
+				if (encontrada == null || p.orden < encontrada.orden){
+					if (point == null)
+						point = gf.createPoint(coor);
+					if (p.geometria.intersects(point))
+						encontrada = p;
+				}
+		}
+
+		return encontrada != null ? encontrada.shape : null;
+	}
+
+
+	/** Devuelve los tags addr:housenumber de la relacion de la parcela
+	 * @param parcela Parcela del indice
+	 * @return Lista de tags, vacia si no tiene
+	 */
+	public List<String[]> getTagsNumero(ShapeParcela parcela){
+		List<String[]> tags = tagsNumero.get(parcela);
+		return tags != null ? tags : Collections.<String[]>emptyList();
+	}
+
+
+	private static class Parcela {
+
+		final int orden;
+		final ShapeParcela shape;
+		final PreparedGeometry geometria;
+
+		Parcela(int orden, ShapeParcela shape, PreparedGeometry geometria){
+			this.orden = orden;
+			this.shape = shape;
+			this.geometria = geometria;
+		}
+	}
+}
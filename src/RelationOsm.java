@@ -1,29 +1,41 @@
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 
 
 public class RelationOsm {
 
-	private List <Long> ids; // Ids de los ways members
+	private ListaIds ids; // Ids de los ways members
 	private List <String> types; // Tipos (way) de los members
 	private List <String> roles; // Roles de los members
 	private String refCatastral; // Referencia catastral para manejar las relaciones de relaciones
-	private List<String[]> tags;
+	private ListaTags tags;
 	private List<String> shapes; // Ids de los shapes a los que pertenece
 	private long fechaConstru = Cat2OsmUtils.getFechaArchivos(); // Fecha de construccion de la parcela que representa AAAAMMDD
 
 
+	// Codigos de los tags que no se sobreescriben con los que empiezan por '*'
+	private static final int NATURAL = TagDictionary.codigo("natural");
+	private static final int WATER = TagDictionary.codigo("water");
+	private static final int WATERWAY = TagDictionary.codigo("waterway");
+	private static final int RIVERBANK = TagDictionary.codigo("riverbank");
+
+
 	public RelationOsm(List <Long> ids, List<String> types, List<String> roles){
-		this.ids = ids;
+		if (ids == null)
+			this.ids = new ListaIds();
+		else if (ids instanceof ListaIds)
+			this.ids = (ListaIds) ids;
+		else
+			this.ids = new ListaIds(ids);
 		this.types = types;
 		this.roles = roles;
-		tags = new ArrayList<String[]>();
+		tags = new ListaTags();
 		shapes = new ArrayList<String>();
 	}
 
@@ -90,8 +102,11 @@ public class RelationOsm {
 	}
 
 
+	/** Devuelve los tags de la relacion. La lista es una copia, para cambiarlos hay que usar addTag()
+	 * @return Lista de tags
+	 */
 	public List<String[]> getTags() {
-		return tags;
+		return tags.toList();
 	}
 
 	/** Anade tag a la relacion. Si ya existe un tag con esa clave lo sobreescribe por eso
@@ -111,23 +126,40 @@ public class RelationOsm {
 		// También comprobamos que si es un *landuse, no se introduzca en relaciones
 		// en las que haya tags que ya especifican que uso y de forma mas correcta
 		boolean encontrado = (tag[0].equals("CAT2OSMSHAPEID"));
-		String[] s = {tag[0].replace("*", ""), tag[1].replaceAll("\"", "")};
+		int clave = TagDictionary.codigo(tag[0].replace("*", ""));
+		String valor = tag[1].replaceAll("\"", "");
 
-		for (int x = 0; !encontrado && x < this.tags.size(); x++){
-			if (tag[0].startsWith("*") && (s[0].equals(this.tags.get(x)[0]) || (this.tags.get(x)[0].equals("natural") && this.tags.get(x)[1].equals("water")) || (this.tags.get(x)[0].equals("waterway") && this.tags.get(x)[1].equals("riverbank")) ))
-				encontrado = true;
+		if (!encontrado)
+			encontrado = sobreescribirTag(this.tags, tag[0].startsWith("*"), clave, valor);
 
-			else if (this.tags.get(x)[0].equals(s[0])){
-				this.tags.get(x)[1] = s[1];
-				encontrado = true;
-			}
+		if (!encontrado || (tag[0].equals("CAT2OSMSHAPEID"))){
+			this.tags.add(clave, valor);
 		}
+	}
 
-		if (!encontrado || (tag[0].equals("CAT2OSMSHAPEID"))){
-			this.tags.add(s);
+	/** Busca la clave del tag en la lista y le pone el valor si se puede sobreescribir
+	 * @param tags Lista de tags
+	 * @param conservar Si el tag venia con '*', en ese caso no se sobreescribe la clave si ya existe
+	 * ni se anade si la relacion es de agua (natural=water o waterway=riverbank)
+	 * @param clave Codigo de la clave sin el '*'
+	 * @param valor Texto del valor
+	 * @return true si ya no hay que anadir el tag al final
+	 */
+	private static boolean sobreescribirTag(ListaTags tags, boolean conservar, int clave, String valor){
+
+		int x = tags.indexOf(clave);
+
+		if (conservar)
+			return x >= 0 || tags.contiene(NATURAL, WATER) || tags.contiene(WATERWAY, RIVERBANK);
+
+		if (x >= 0){
+			tags.setValor(x, valor);
+			return true;
 		}
+		return false;
 	}
 
+
 	/** Anade tags a la relacion. Si ya existe un tag con esa clave lo sobreescribe por eso
 	 * vamos a indicar que si la clave viene con '*' por delante, si ya existe un tag con esa
 	 * clave, no lo sobreescriba. Es porque primero se leen los shapefiles y despues los cat,
@@ -144,23 +176,35 @@ public class RelationOsm {
 			// si es asi, conserva si ya existiese uno con esa clave, si no empieza
 			// por '*' lo machaca si existiese uno igual con el nuevo valor.
 			boolean encontrado = (tags.get(x)[0].equals("CAT2OSMSHAPEID"));
-			String[] s = {tags.get(x)[0].replace("*", ""), tags.get(x)[1].replaceAll("\"", "")};
-
-			for (int y = 0; !encontrado && y < this.tags.size(); y++){
-				if (tags.get(x)[0].startsWith("*") && (s[0].equals(this.tags.get(y)[0]) || (this.tags.get(y)[0].equals("natural") && this.tags.get(y)[1].equals("water")) || (this.tags.get(x)[0].equals("waterway") && this.tags.get(x)[1].equals("riverbank")) ))
-					encontrado = true;
-				else if (this.tags.get(y)[0].equals(s[0])){
-					this.tags.get(y)[1] = s[1];
-					encontrado = true;
-				}
-			}
-			if (!encontrado || (s[0].equals("CAT2OSMSHAPEID"))){
-				this.tags.add(s);
+			String clave = tags.get(x)[0].replace("*", "");
+			int codigoClave = TagDictionary.codigo(clave);
+			String valor = tags.get(x)[1].replaceAll("\"", "");
+
+			if (!encontrado)
+				encontrado = sobreescribirTag(this.tags, tags.get(x)[0].startsWith("*"), codigoClave, valor);
+
+			if (!encontrado || (clave.equals("CAT2OSMSHAPEID"))){
+				this.tags.add(codigoClave, valor);
 			}
 		}
 	}
 
 
+	/** Comparte los codigos de los tags con las relaciones que tienen los mismos (ver
+	 * ListaTags.compartir()). Se llama cuando se deja de anadir tags a la relacion durante
+	 * un rato, si despues se anaden mas se vuelve a copiar el array.
+	 */
+	public void compartirTags(){
+		tags.compartir();
+	}
+
+
+	/** Compara dos valores de tags, que pueden ser null */
+	private static boolean iguales(String a, String b){
+		return a == null ? b == null : a.equals(b);
+	}
+
+
 	public List<Long> sortIds(){
 		List<Long> result = new ArrayList<Long>();
 		for (Long l : ids)
@@ -170,12 +214,16 @@ public class RelationOsm {
 	}
 
 
+	/** Mismo valor que daria sortIds().hashCode() pero sobre los ids ordenados que guarda
+	 * la lista, sin copiarla ni ordenarla cada vez
+	 */
 	@Override
 	public int hashCode() {
 		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((sortIds() == null) ? 0 : sortIds().hashCode());
-		return result;
+		int hashIds = 1;
+		for (long l : ids.getFirma())
+			hashIds = prime * hashIds + (int) (l^(l>>>32));
+		return prime + hashIds;
 	}
 
 
@@ -188,10 +236,7 @@ public class RelationOsm {
 		if (getClass() != obj.getClass())
 			return false;
 		RelationOsm other = (RelationOsm) obj;
-		if (ids == null) {
-			if (other.ids != null)
-				return false;
-		} else if (!sortIds().equals(other.sortIds()))
+		if (!Arrays.equals(ids.getFirma(), other.ids.getFirma()))
 			return false;
 		if (roles == null) {
 			if (other.roles != null)
@@ -244,24 +289,38 @@ public class RelationOsm {
 
 					// Si tiene un role de inner
 					if (relation.getRoles().get(pos).equals("inner")){
+						// Se comparan los textos porque los valores propios no tienen codigo
+						List<String[]> nuevos = this.tags.toList();
+						List<String[]> otros = relation == this ? nuevos : relation.getTags();
+						boolean borrado = false;
 						for (int y = 0; y < relation.getIds().size(); y++)
 							if (y != pos)
-								for (int z = 0; z < relation.getTags().size(); z++)
-									for (int w = 0; w < this.tags.size(); w++)
+								for (int z = 0; z < otros.size(); z++)
+									for (int w = 0; w < nuevos.size(); w++)
 										// Eliminamos los tags que coincidan ya que los del inner estan implicitos y no hay que escribirlos
-										if ( (this.tags.get(w)[0]).equals(relation.getTags().get(z)[0]) && (this.tags.get(w)[1]).equals(relation.getTags().get(z)[1]))
-											this.tags.remove(w);
+										if (nuevos.get(w)[0].equals(otros.get(z)[0]) && iguales(nuevos.get(w)[1], otros.get(z)[1])){
+											nuevos.remove(w);
+											borrado = true;
+										}
+						if (borrado){
+							ListaTags quedan = new ListaTags();
+							for (String[] tag : nuevos)
+								quedan.add(TagDictionary.codigo(tag[0]), tag[1]);
+							quedan.compartir();
+							this.tags = quedan;
+						}
 
 						// Este metodo de arriba se carga el building=yes y es necesario si tiene un building:levels
 						for (String[] tag : relation.getTags())
 							if (tag[0].equals("building:levels")){
 								relation.addTag(new String[]{"building","yes"});
+								relation.compartirTags();
 							}
 					}
 				}
 			}
 
-			WayOsm way = ((WayOsm) utils.getKeyFromValue((Map<String, Map<Object, Long>>) ((Object)utils.getTotalWays()), key, ids.get(0)));
+			WayOsm way = utils.getWay(key, ids.get(0));
 
 			if (way == null){
 				System.out.println("["+new Timestamp(new Date().getTime())+"] Una vía ha dado un error y no se imprimirá. Esto dejará sus nodos sueltos.");
@@ -286,6 +345,7 @@ public class RelationOsm {
 					s += "<tag k=\"CAT2OSMSHAPEID"+x+"\" v=\""+way.getShapes().get(x)+"\"/>\n";
 
 			// Imprimir los tags
+			List<String[]> tags = this.tags.toList();
 			for (int x = 0; x < tags.size(); x++) {
 
 				// Filtramos para que no salgan todos los tags, siguiente bucle se explica el porque
@@ -324,9 +384,10 @@ public class RelationOsm {
 			s = ("<relation id=\""+ id +"\" timestamp=\""+new Timestamp(new Date().getTime())+"\" visible=\"true\"  version=\"6\">\n");
 
 			for (int x = 0; x < ids.size(); x++)
-				if (utils.getTotalWays().get(key).containsValue(ids.get(x)))
+				if (utils.getWay(key, ids.get(x)) != null)
 					s += ("<member type=\""+ types.get(x) +"\" ref=\""+ ids.get(x)+"\" role=\""+ roles.get(x) +"\" />\n");			
 
+			List<String[]> tags = this.tags.toList();
 			for (int x = 0; x < tags.size(); x++){
 				
 				// Filtramos para que no salgan todos los tags, abajo se explica el porque
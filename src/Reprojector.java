@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateFilter;
+import com.vividsolutions.jts.geom.Geometry;
+
+
+/** Reproyecta dentro de la JVM las coordenadas UTM de los shapefiles de catastro
+ * a Lat/Lon WGS84, que es la que utiliza OpenStreetMap.
+ * Soporta las proyecciones que puede traer catastro:
+ * 23029-23031 (ED50, con la rejilla NTv2 de NadgridsPath para pasar a ETRS89),
+ * 25829-25831 (ETRS89, que a esta escala es igual que WGS84) y 32628 (WGS84 huso 28, Canarias).
+ * No guarda estado entre coordenadas, asi que una misma instancia se puede usar desde varios hilos.
+ */
+public class Reprojector implements CoordinateFilter {
+
+	private static final double K0 = 0.9996;
+	private static final double FALSO_ESTE = 500000;
+
+	private final double lon0;  // Meridiano central del huso en radianes
+	private final double a;     // Radio de la serie de Kruger
+	private final double[] beta = new double[3];
+	private final double[] delta = new double[3];
+	private final NTv2Grid rejilla;
+
+
+	/** Crea el reproyector para un codigo EPSG
+	 * @param epsg Codigo de la proyeccion de los shapefiles
+	 * @return Reproyector o null si la proyeccion no esta soportada o no se ha podido leer
+	 * la rejilla, en cuyo caso hay que reproyectar con ogr2ogr
+	 */
+	public static Reprojector crear(int epsg){
+
+		// ED50, elipsoide Internacional 1924
+		if (23029 <= epsg && epsg <= 23031){
+			try {
+				NTv2Grid rejilla = NTv2Grid.cargar(Config.get("NadgridsPath"));
+				return new Reprojector(epsg - 23000, 6378388, 1 / 297.0, rejilla);
+			} catch (IOException e) {
+				System.out.println("["+new Timestamp(new Date().getTime())+"] No se ha podido leer la rejilla "
+						+ Config.get("NadgridsPath") + ". " + e.getMessage());
+				return null;
+			}
+		}
+		// ETRS89, elipsoide GRS80
+		else if (25829 <= epsg && epsg <= 25831)
+			return new Reprojector(epsg - 25800, 6378137, 1 / 298.257222101, null);
+		// WGS84 huso 28
+		else if (epsg == 32628)
+			return new Reprojector(28, 6378137, 1 / 298.257223563, null);
+
+		return null;
+	}
+
+
+	/** Constructor
+	 * @param huso Huso UTM (hemisferio norte)
+	 * @param semiejeMayor Semieje mayor del elipsoide
+	 * @param aplanamiento Aplanamiento del elipsoide
+	 * @param rejilla Rejilla para el cambio de datum o null si no hace falta
+	 */
+	private Reprojector(int huso, double semiejeMayor, double aplanamiento, NTv2Grid rejilla){
+
+		this.lon0 = Math.toRadians(huso * 6 - 183);
+		this.rejilla = rejilla;
+
+		double n = aplanamiento / (2 - aplanamiento);
+		double n2 = n * n;
+		double n3 = n2 * n;
+
+		a = semiejeMayor / (1 + n) * (1 + n2 / 4 + n2 * n2 / 64);
+
+		beta[0] = n / 2 - 2 * n2 / 3 + 37 * n3 / 96;
+		beta[1] = n2 / 48 + n3 / 15;
+		beta[2] = 17 * n3 / 480;
+
+		delta[0] = 2 * n - 2 * n2 / 3 - 2 * n3;
+		delta[1] = 7 * n2 / 3 - 8 * n3 / 5;
+		delta[2] = 56 * n3 / 15;
+	}
+
+
+	/** Reproyecta la geometria, modificando sus coordenadas
+	 * @param g Geometria en UTM
+	 */
+	public void reproyectar(Geometry g){
+		if (g != null){
+			g.apply(this);
+			g.geometryChanged();
+		}
+	}
+
+
+	/** Pasa una coordenada UTM a x = longitud, y = latitud */
+	public void filter(Coordinate c){
+
+		double[] lonLat = utmAGeograficas(c.x, c.y);
+
+		if (rejilla != null)
+			rejilla.desplazar(lonLat);
+
+		c.x = lonLat[0];
+		c.y = lonLat[1];
+	}
+
+
+	/** Inversa de la proyeccion transversa de Mercator con la serie de Kruger,
+	 * precision milimetrica dentro del huso y bastante mas alla
+	 * @param este Coordenada X UTM
+	 * @param norte Coordenada Y UTM
+	 * @return Longitud y latitud en grados
+	 */
+	private double[] utmAGeograficas(double este, double norte){
+
+		double xi = norte / (K0 * a);
+		double eta = (este - FALSO_ESTE) / (K0 * a);
+
+		double xi1 = xi;
+		double eta1 = eta;
+		for (int j = 1; j <= 3; j++){
+			xi1 -= beta[j-1] * Math.sin(2 * j * xi) * Math.cosh(2 * j * eta);
+			eta1 -= beta[j-1] * Math.cos(2 * j * xi) * Math.sinh(2 * j * eta);
+		}
+
+		double chi = Math.asin(Math.sin(xi1) / Math.cosh(eta1));
+
+		double lat = chi;
+		for (int j = 1; j <= 3; j++)
+			lat += delta[j-1] * Math.sin(2 * j * chi);
+
+		double lon = lon0 + Math.atan2(Math.sinh(eta1), Math.cos(xi1));
+
+		return new double[]{ Math.toDegrees(lon), Math.toDegrees(lat) };
+	}
+}
@@ -2,6 +2,7 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opengis.feature.simple.SimpleFeature;
 
@@ -13,7 +14,7 @@ public abstract class Shape {
 	private List<ShapeAttribute> atributos;
 	protected long fechaAlta; // Fecha de Alta en catastro Formato AAAAMMDD
 	protected long fechaBaja; // Fecha de Baja en catastro Formato AAAAMMDD
-	protected volatile static Long Id = (long) 0; // Variable autoincremental que se concatena al shapeId
+	protected static final AtomicLong Id = new AtomicLong(0); // Variable autoincremental que se concatena al shapeId
 
 
 	/**Constructor
@@ -89,9 +90,8 @@ public abstract class Shape {
 	}
 
 
-	public synchronized long newShapeId(){
-		Id++;
-		return Id;
+	public long newShapeId(){
+		return Id.incrementAndGet();
 	}
 
 
@@ -27,6 +27,7 @@ public class ShapeEjes extends Shape {
 	private List<ShapeAttribute> atributos;
 	private String tipo; // Tipo de ejes Rusticos o Urbanos. Todos los urbanos tendran highway=residential
 	private static final Map<Long,String> ejesNames = new HashMap<Long, String>(); // Lista de codigos y nombres de vias (para el Ejes.shp)
+	private static boolean carviaLeido = false; // Si ya se ha cargado ejesNames
 	private String codigoMasa; // Codigo de masa a la que pertenece
 	// Esto se usa para la paralelizacion ya que luego solo se simplificaran geometrias que
 	// pertenezcan a las mismas masas. Si alguna geometria no tiene codigo de masa, se le
@@ -44,10 +45,6 @@ public class ShapeEjes extends Shape {
 		
 		this.tipo = tipo;
 
-		if (tipo.equals("UR") && ejesNames.isEmpty()){
-			readCarvia(tipo);
-		}
-		
 		// Ejes trae la geometria en formato MultiLineString
 		if ( f.getDefaultGeometry().getClass().getName().equals("com.vividsolutions.jts.geom.MultiLineString")){
 
@@ -344,12 +341,16 @@ public class ShapeEjes extends Shape {
 	
 	/** Lee el archivo Carvia.dbf y lo almacena para despues relacionar el numero de via 
 	 * de Ejes.shp con los nombres de via que trae Carvia.dbf. El nombre de via trae tambien el tipo
-	 * en formato 2caracteres de tipo de via, un espacio en blanco y el nombre de via
-	 * @param file Archivo Ejes.shp del para acceder a su Carvia.dbf
-	 * @throws IOException 
+	 * en formato 2caracteres de tipo de via, un espacio en blanco y el nombre de via.
+	 * Solo lo lee la primera vez que se llama. ShapeParser lo llama antes de mandar
+	 * ningun lote al pool de parseo, asi los lotes ya encuentran la tabla completa.
+	 * @param tipo Tipo UR/RU de los ejes
 	 * @throws IOException
 	 */
-	public void readCarvia(String tipo) throws IOException{
+	public static synchronized void readCarvia(String tipo) throws IOException{
+		
+		if (carviaLeido)
+			return;
 		
 		InputStream inputStream = null;
 		if (tipo.equals("UR"))
@@ -384,6 +385,8 @@ public class ShapeEjes extends Shape {
 				ejesNames.put((long) v, (String) rowObjects[indiceDenomina]);
 			}
 		}
+		inputStream.close();
+		carviaLeido = true;
 	}  
 	
 	
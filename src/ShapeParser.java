@@ -5,10 +5,18 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import org.geotools.data.FeatureReader;
 import org.geotools.data.FileDataStore;
@@ -17,164 +25,276 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
 
 
-public class ShapeParser extends Thread{
+/** Lee un shapefile. Se ejecuta como tarea en el pool de lectura: lee las lineas
+ * del shapefile y las reparte en lotes que se procesan (reproyeccion, creacion del
+ * shape y de sus nodos, ways y relation) en el pool de parseo.
+ */
+public class ShapeParser implements Runnable{
+
+	// Numero de lineas del shapefile que se procesan en cada tarea
+	private static final int TAMANO_LOTE = 500;
 
 	String tipo; // UR/RU
-	File file;
+	File origen; // Shapefile de catastro
+	File file; // Shapefile que se lee, el de catastro o el reproyectado por ogr2ogr
+	String nombre; // Tipo + nombre del shapefile, p.e. URPARCELA.SHP
+	String archivo; // Nombre del shapefile, p.e. PARCELA.SHP
 	Cat2OsmUtils utils;
-	HashMap <String, List<Shape>> shapeList;
+	Map<String, List<Shape>> shapeList; // Buffer del parser reservado en el ShapeRegistry
+	ExecutorService parseo; // Pool en el que se procesan los lotes
+	Reprojector reproyector; // Si es null, el archivo ya se ha reproyectado con ogr2ogr
+	long fechaDesde;
+	long fechaHasta;
 	
 	static int num = 0;
-
-	public ShapeParser (String t, File f, Cat2OsmUtils u, HashMap<String, List<Shape>> s){
-		super (f.getName());
+	
+	// Limita las reproyecciones con ogr2ogr que se ejecutan a la vez
+	private static final Semaphore reproyecciones = new Semaphore(Cat2OsmUtils.getNumHilos());
+
+	// Limita los lotes mandados al pool de parseo que aun no han terminado, entre todos
+	// los parsers, para que la lectura no se adelante al parseo y llene la memoria de lineas
+	private static final Semaphore lotesEnCurso = new Semaphore(2 * Cat2OsmUtils.getNumHilos());
+
+	/** Constructor
+	 * @param t Tipo UR/RU
+	 * @param f Shapefile a leer
+	 * @param u Utils
+	 * @param s Lista de shapes agrupados por codigo de masa donde se meten los leidos.
+	 * El parser reserva en ella su sitio, asi que hay que crearlos en el orden en que se lanzan
+	 * @param parseo Pool donde se procesan los lotes de lineas leidas
+	 */
+	public ShapeParser (String t, File f, Cat2OsmUtils u, ShapeRegistry s, ExecutorService parseo){
 		this.tipo = t;
-		this.file = reproyectarWGS84(f, t);
+		this.nombre = (t + f.getName()).toUpperCase();
+		this.archivo = f.getName().toUpperCase();
+		this.origen = f;
 		this.utils = u;
-		shapeList = s;
-		
-		start();
+		this.parseo = parseo;
+		shapeList = s.reservar();
 	}
 
 
 	public void run () {
 
+		// Si no es uno de los shapefiles que sabemos leer no hay nada que hacer
+		if (!sabeLeer())
+			return;
+
 		try {
+			// La reproyeccion se hace ya en la tarea, asi cada parser empieza a leer
+			// en cuanto tiene su archivo sin esperar a los demas
+			prepararArchivo();
+
+			// Las tablas auxiliares se cargan enteras antes de mandar el primer lote
+			cargarTablas();
+			
 			FileDataStore store = FileDataStoreFinder.getDataStore(file);
 			//ShapefileDataStore store = new ShapefileDataStore(file.toURL(),true,Charset.forName("ISO-8859-15"));
 			FeatureReader<SimpleFeatureType, SimpleFeature> reader = 
 					((FileDataStore) store).getFeatureReader();
 
-			long fechaDesde = Long.parseLong(Config.get("FechaDesde"));
-			long fechaHasta = Long.parseLong(Config.get("FechaHasta"));
+			fechaDesde = Long.parseLong(Config.get("FechaDesde"));
+			fechaHasta = Long.parseLong(Config.get("FechaHasta"));
 
-			// Creamos el shape dependiendo de su tipo
-			if (file.getName().toUpperCase().equals(tipo+"MASA.SHP"))
+			// Leemos el shapefile y vamos mandando lotes de lineas al pool de parseo
+			Deque<Future<Map<String, List<Shape>>>> lotes = new ArrayDeque<Future<Map<String, List<Shape>>>>();
+			List<SimpleFeature> lote = new ArrayList<SimpleFeature>(TAMANO_LOTE);
 
-				// Shapes del archivo MASA.SHP
-				while (reader.hasNext()) {
-					Shape shape = new ShapeMasa(reader.next(), tipo);
-					
-					// Si cumple estar entre las fechas
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(mPolygonShapeParser(shape));
-					}
+			while (reader.hasNext()) {
+				lote.add(reader.next());
+				if (lote.size() == TAMANO_LOTE){
+					mandarLote(lote, lotes);
+					lote = new ArrayList<SimpleFeature>(TAMANO_LOTE);
 				}
-			else if (file.getName().toUpperCase().equals(tipo+"PARCELA.SHP")){
+			}
+			if (!lote.isEmpty())
+				mandarLote(lote, lotes);
 
-				// Shapes del archivo PARCELA.SHP
-				while (reader.hasNext()) {
-					
-					Shape shape = new ShapeParcela(reader.next(), tipo);
+			reader.close();
+			store.dispose();
 
-					// Si cumple estar entre las fechas
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(mPolygonShapeParser(shape));
-					}
-				}
-			}
-			else if (file.getName().toUpperCase().equals(tipo+"SUBPARCE.SHP"))
-
-				// Shapes del archivo SUBPARCE.SHP
-				while (reader.hasNext()) {
-					Shape shape = new ShapeSubparce(reader.next(), tipo);
-
-					// Si cumple estar entre las fechas 
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(mPolygonShapeParser(shape));
-					}
-				}
-			else if (file.getName().toUpperCase().equals(tipo+"CONSTRU.SHP"))
+			// Los lotes se vuelcan en el orden en que se mandaron, no en el que terminan
+			while (!lotes.isEmpty())
+				ShapeRegistry.volcar(shapeList, lotes.pollFirst().get());
 
-				// Shapes del archivo CONSTRU.SHP
-				while (reader.hasNext()) {
-					Shape shape = new ShapeConstru(reader.next(), tipo);
+			if (reproyector == null)
+				borrarShpFiles(nombre);
+			else
+				System.out.println("["+new Timestamp(new Date().getTime())+"] Terminado de leer los archivos "+nombre+".");
 
-					// Si cumple estar entre las fechas
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(mPolygonShapeParser(shape));
-					}
-				}
-			else if (file.getName().toUpperCase().equals(tipo+"ELEMTEX.SHP"))
+		} catch (IOException e) {e.printStackTrace();}
+		catch (InterruptedException e) {e.printStackTrace();}
+		catch (ExecutionException e) {e.printStackTrace();}
+	}
 
-				// Shapes del archivo ELEMTEX.SHP
-				while (reader.hasNext()) {
-					Shape shape = new ShapeElemtex(reader.next(), tipo);
 
-					// Si cumple estar entre las fechas
-					// Si cumple tener un ttggss valido (no interesa mostrar todos)
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(pointShapeParser(shape));
-					}
-				}
-			else if (file.getName().toUpperCase().equals(tipo+"ELEMPUN.SHP"))
+	/** Manda un lote al pool de parseo. Si ya hay demasiados lotes sin terminar espera
+	 * a que acabe alguno. Aprovecha para volcar los lotes del principio que ya han
+	 * terminado, asi sus shapes no se quedan en buffers hasta el final de la lectura
+	 * @param lote Lineas del shapefile
+	 * @param lotes Lotes mandados y sin volcar, en el orden en que se mandaron
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private void mandarLote(List<SimpleFeature> lote, Deque<Future<Map<String, List<Shape>>>> lotes) throws InterruptedException, ExecutionException{
 
-				// Shapes del archivo ELEMPUN.SHP
-				while (reader.hasNext()) {
-					Shape shape = new ShapeElempun(reader.next(), tipo);
+		lotesEnCurso.acquire();
+		try {
+			lotes.addLast(parseo.submit(new Lote(lote)));
+		} catch (RejectedExecutionException e) {
+			lotesEnCurso.release();
+			throw e;
+		}
 
-					// Si cumple estar entre las fechas
-					// Si cumple tener un ttggss valido (no interesa mostrar todos)
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(pointShapeParser(shape));
-					}
-				}
-			else if (file.getName().toUpperCase().equals(tipo+"ELEMLIN.SHP"))
+		while (!lotes.isEmpty() && lotes.peekFirst().isDone())
+			ShapeRegistry.volcar(shapeList, lotes.pollFirst().get());
+	}
+
+
+	/** Tarea que procesa un lote de lineas consecutivas del shapefile.
+	 * Devuelve los shapes del lote agrupados por codigo de masa
+	 */
+	private class Lote implements Callable<Map<String, List<Shape>>> {
+
+		private final List<SimpleFeature> features;
+
+		Lote(List<SimpleFeature> features){
+			this.features = features;
+		}
+
+		public Map<String, List<Shape>> call(){
+
+			// Los shapes del lote se guardan aparte y el parser los vuelca en orden
+			Map<String, List<Shape>> buffer = ShapeRegistry.crearBuffer();
 
-				// Shapes del archivo ELEMLIN.SHP
-				while (reader.hasNext()) {
-					Shape shape = new ShapeElemlin(reader.next(), tipo);
+			try {
+				for (SimpleFeature f : features){
+
+					if (reproyector != null)
+						reproyector.reproyectar((Geometry) f.getDefaultGeometry());
+
+					Shape shape = crearShape(f);
 
 					// Si cumple estar entre las fechas
 					// Si cumple tener un ttggss valido (no interesa mostrar todos)
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(mLineStringShapeParser(shape));
-					}
+					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido())
+						ShapeRegistry.anadir(buffer, parsearShape(shape));
 				}
-			else if (file.getName().toUpperCase().equals(tipo+"EJES.SHP"))
+			} catch (IOException e) {e.printStackTrace();}
+			finally {
+				lotesEnCurso.release();
+			}
 
-				// Shapes del archivo EJES.SHP
-				while (reader.hasNext()) {
-					Shape shape = new ShapeEjes(reader.next(), tipo);
+			return buffer;
+		}
+	}
 
-					// Si cumple estar entre las fechas
-					if (shape != null && shape.checkShapeDate(fechaDesde, fechaHasta) && shape.shapeValido()){
-						// Anadimos el shape creado a la lista
-						if (shapeList.get(shape.getCodigoMasa()) == null)
-							shapeList.put(shape.getCodigoMasa(), new ArrayList<Shape>());
-						shapeList.get(shape.getCodigoMasa()).add(mLineStringShapeParser(shape));
-					}
-				}
 
-			reader.close();
-			store.dispose();
+	/** Indica si es uno de los shapefiles de catastro que se leen
+	 * @return true si se sabe leer
+	 */
+	private boolean sabeLeer(){
+		switch (archivo) {
+		case "MASA.SHP":
+		case "PARCELA.SHP":
+		case "SUBPARCE.SHP":
+		case "CONSTRU.SHP":
+		case "ELEMTEX.SHP":
+		case "ELEMPUN.SHP":
+		case "ELEMLIN.SHP":
+		case "EJES.SHP":
+			return true;
+		default:
+			return false;
+		}
+	}
 
-			borrarShpFiles(file.getName().toUpperCase());
 
-		} catch (IOException e) {e.printStackTrace();}
+	/** Carga las tablas auxiliares que consultan los constructores de los shapes.
+	 * Se tiene que llamar antes de mandar lotes al pool de parseo, los lotes
+	 * solo leen las tablas
+	 * @throws IOException
+	 */
+	private void cargarTablas() throws IOException{
+		switch (archivo) {
+		case "EJES.SHP":
+			if (tipo.equals("UR"))
+				ShapeEjes.readCarvia(tipo);
+			break;
+		case "SUBPARCE.SHP":
+			ShapeSubparce.readSubparceDetails(tipo);
+			break;
+		default:
+			break;
+		}
+	}
+
+
+	/** Crea el shape dependiendo del tipo de shapefile
+	 * @param f Linea del shapefile
+	 * @return Shape creado sin los valores de los nodos, ways o relation
+	 * @throws IOException
+	 */
+	private Shape crearShape(SimpleFeature f) throws IOException{
+		switch (archivo) {
+		case "MASA.SHP": return new ShapeMasa(f, tipo);
+		case "PARCELA.SHP": return new ShapeParcela(f, tipo);
+		case "SUBPARCE.SHP": return new ShapeSubparce(f, tipo);
+		case "CONSTRU.SHP": return new ShapeConstru(f, tipo);
+		case "ELEMTEX.SHP": return new ShapeElemtex(f, tipo);
+		case "ELEMPUN.SHP": return new ShapeElempun(f, tipo);
+		case "ELEMLIN.SHP": return new ShapeElemlin(f, tipo);
+		case "EJES.SHP": return new ShapeEjes(f, tipo);
+		default: return null;
+		}
+	}
+
+
+	/** Asigna al shape sus nodos, ways y relation segun su geometria
+	 * @param shape Shape creado pero sin los valores de los nodos, ways o relation
+	 * @return Shape con todos los valores asignados
+	 */
+	private Shape parsearShape(Shape shape){
+		switch (archivo) {
+		case "ELEMTEX.SHP":
+		case "ELEMPUN.SHP":
+			return pointShapeParser(shape);
+		case "ELEMLIN.SHP":
+		case "EJES.SHP":
+			return mLineStringShapeParser(shape);
+		default:
+			return mPolygonShapeParser(shape);
+		}
+	}
+
+
+	/** Prepara el archivo a leer. Si la proyeccion esta soportada se reproyecta cada
+	 * geometria segun se lee (la rejilla se carga una sola vez para todos los parsers),
+	 * si no se genera un shapefile reproyectado con ogr2ogr
+	 * @throws InterruptedException
+	 */
+	private void prepararArchivo() throws InterruptedException{
+
+		try {
+			reproyector = Reprojector.crear(Integer.parseInt(Config.get("Proyeccion")));
+		} catch (NumberFormatException e){
+			reproyector = null;
+		}
+
+		if (reproyector != null)
+			file = origen;
+		else {
+			reproyecciones.acquire();
+			try {
+				file = reproyectarWGS84(origen, tipo);
+			}
+			finally {
+				reproyecciones.release();
+			}
+		}
 	}
 
 
@@ -216,7 +336,7 @@ public class ShapeParser extends Thread{
 		}
 
 		// Creamos una relation para el shape, metiendoe en ella todos los members
-		List <Long> ids = new ArrayList<Long>(); // Ids de los members
+		List <Long> ids = new ListaIds(); // Ids de los members
 		List <String> types = new ArrayList<String>(); // Tipos de los members
 		List <String> roles = new ArrayList<String>(); // Roles de los members
 		for (int x = 0; x < shape.getPoligons().size() ; x++){
@@ -285,7 +405,7 @@ public class ShapeParser extends Thread{
 		}
 
 		// Con los ways creamos una relacion
-		List <Long> ids = new ArrayList<Long>(); // Ids de los members
+		List <Long> ids = new ListaIds(); // Ids de los members
 		List <String> types = new ArrayList<String>(); // Tipos de los members
 		List <String> roles = new ArrayList<String>(); // Roles de los members
 		for (Long way: shape.getWaysIds(0)){
@@ -303,7 +423,8 @@ public class ShapeParser extends Thread{
 
 	/** Utilizando ogr2ogr reproyecta el archivo de shapes de su proyeccion
 	 * EPSG a WGS84 que es la que utiliza OpenStreetMap. Tambien convierte las 
-	 * coordenadas UTM en Lat/Lon
+	 * coordenadas UTM en Lat/Lon. Solo se usa para las proyecciones que no
+	 * soporta Reprojector
 	 * @param f Archivo a reproyectar
 	 * @return File Archivo reproyectado
 	 */
@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/** Lista de shapes agrupados por codigo de masa que rellenan a la vez los parsers.
+ * Cada parser reserva su buffer con reservar() al crearse, en el orden en que se lanzan,
+ * y cada lote de lineas guarda sus shapes en un buffer propio (ver crearBuffer()).
+ * El parser vuelca los lotes en su buffer en el orden en que se mandaron y getShapes()
+ * junta los buffers en el orden en que se reservaron, asi el orden de los shapes dentro
+ * de cada masa es el mismo en todas las ejecuciones.
+ */
+public class ShapeRegistry {
+
+	private final List<Map<String, List<Shape>>> buffers = new ArrayList<Map<String, List<Shape>>>();
+
+
+	/** Crea un buffer local para ir guardando shapes antes de volcarlos con anadir()
+	 * @return Mapa vacio de codigo de masa a lista de shapes
+	 */
+	public static Map<String, List<Shape>> crearBuffer(){
+		return new HashMap<String, List<Shape>>();
+	}
+
+
+	/** Anade un shape al buffer en la lista de su codigo de masa
+	 * @param buffer Buffer creado con crearBuffer()
+	 * @param shape Shape
+	 */
+	public static void anadir(Map<String, List<Shape>> buffer, Shape shape){
+		List<Shape> l = buffer.get(shape.getCodigoMasa());
+		if (l == null){
+			l = new ArrayList<Shape>();
+			buffer.put(shape.getCodigoMasa(), l);
+		}
+		l.add(shape);
+	}
+
+
+	/** Vuelca los shapes de un buffer al final de las listas de otro
+	 * @param destino Buffer donde se anaden los shapes
+	 * @param buffer Buffer creado con crearBuffer()
+	 */
+	public static void volcar(Map<String, List<Shape>> destino, Map<String, List<Shape>> buffer){
+
+		for (Map.Entry<String, List<Shape>> e : buffer.entrySet()){
+
+			List<Shape> l = destino.get(e.getKey());
+			if (l == null){
+				l = new ArrayList<Shape>();
+				destino.put(e.getKey(), l);
+			}
+			l.addAll(e.getValue());
+		}
+	}
+
+
+	/** Reserva el buffer de un parser. Se tiene que llamar desde el hilo que lanza
+	 * los parsers y en el orden en que se lanzan, ese es el orden en que se juntan
+	 * los shapes en getShapes()
+	 * @return Buffer del parser
+	 */
+	public synchronized Map<String, List<Shape>> reservar(){
+		Map<String, List<Shape>> buffer = crearBuffer();
+		buffers.add(buffer);
+		return buffer;
+	}
+
+
+	/** Devuelve los shapes leidos agrupados por codigo de masa.
+	 * Solo se debe llamar cuando hayan terminado todos los parsers.
+	 * @return Mapa de codigo de masa a lista de shapes
+	 */
+	public synchronized HashMap<String, List<Shape>> getShapes(){
+		HashMap<String, List<Shape>> shapes = new HashMap<String, List<Shape>>();
+		for (Map<String, List<Shape>> buffer : buffers)
+			volcar(shapes, buffer);
+		return shapes;
+	}
+}
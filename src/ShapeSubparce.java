@@ -36,6 +36,7 @@ public class ShapeSubparce extends Shape {
 	// asignara el nombre de tipo de archivo
 	private long area; // Area para saber si poner landuse allotments (<400m2) o el que sea
 	private static final Map<String,Map<String,String>> lSub = new HashMap<String,Map<String,String>>(); // Mapa <RefCat<ClaveSubparce,CodigoCultivo>> (para el Subparce.shp)
+	private static boolean lSubLeido = false; // Si ya se ha cargado lSub
 
 
 	/** Constructor
@@ -51,10 +52,6 @@ public class ShapeSubparce extends Shape {
 		// Para agrupar geometrias segun su codigo de masa
 		codigoMasa = ((String) f.getAttribute("MASA")).replaceAll("[^\\p{L}\\p{N}]", "")+"-";
 
-		if (lSub.isEmpty()){
-			readSubparceDetails(tipo);
-		}
-
 		this.poligons = new ArrayList<LineString>();
 
 		// Parcela.shp trae la geometria en formato MultiPolygon
@@ -250,9 +247,14 @@ public class ShapeSubparce extends Shape {
 	 * de Subparce.shp con la calificacion catastral que trae Rusubparcela.dbf. Con la cc se accedera
 	 * al rucultivo.dbf. Se supone que estos archivos solo existen en el caso de subparcelas rusticas,
 	 * por si acaso se pasa el tipo para futuras mejoras.
+	 * Solo lo lee la primera vez que se llama. ShapeParser lo llama antes de mandar
+	 * ningun lote al pool de parseo, asi los lotes ya encuentran la tabla completa.
 	 * @throws IOException 
 	 */
-	public void readSubparceDetails(String tipo) throws IOException {
+	public static synchronized void readSubparceDetails(String tipo) throws IOException {
+
+		if (lSubLeido)
+			return;
 
 		if (tipo.equals("RU")){
 			InputStream inputStream = new FileInputStream(Config.get("RusticoSHPPath") + "/RUSUBPARCELA/RUSUBPARCELA.DBF");
@@ -270,6 +272,7 @@ public class ShapeSubparce extends Shape {
 				lSub.get(((String) rowObjects[2]).trim()).put(((String) rowObjects[6]).trim(), ((String) rowObjects[8]).trim());
 			}
 			inputStream.close();
+			lSubLeido = true;
 		}
 	}  
 
@@ -0,0 +1,83 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** Diccionario de todas las claves y valores de tags de la ejecucion. A cada texto distinto
+ * se le da un codigo entero la primera vez que aparece, asi los nodos y relaciones guardan
+ * sus tags como parejas de enteros (ver ListaTags), cada texto se guarda una sola vez
+ * y comparar tags es comparar enteros.
+ * Los codigos no se borran nunca y se pueden pedir desde varios hilos a la vez. Por eso los
+ * valores de las claves propias de cada elemento (ver esPropia()) no se meten en el diccionario.
+ */
+public class TagDictionary {
+
+	// Codigo de cada texto
+	private static final ConcurrentHashMap<String, Integer> codigos = new ConcurrentHashMap<String, Integer>();
+
+	// Texto de cada codigo, se sustituye por uno mas grande cuando se llena
+	private static volatile String[] textos = new String[1024];
+	private static int numTextos = 0;
+
+	// Claves con un valor distinto en casi cada elemento (id del shape, referencia catastral).
+	// Sus valores se guardarian para toda la ejecucion sin repetirse nunca, asi que las listas
+	// los guardan como textos y se liberan con el elemento
+	private static final int[] PROPIAS = {codigo("CAT2OSMSHAPEID"), codigo("catastro:ref")};
+
+
+	/** Devuelve el codigo de un texto, dandole uno nuevo si no lo tenia
+	 * @param texto Clave o valor de un tag
+	 * @return Codigo del texto o -1 si es null
+	 */
+	public static int codigo(String texto){
+
+		if (texto == null)
+			return -1;
+
+		Integer c = codigos.get(texto);
+		if (c != null)
+			return c;
+
+		synchronized (TagDictionary.class){
+			c = codigos.get(texto);
+			if (c == null){
+				if (numTextos == textos.length){
+					String[] nuevo = new String[textos.length * 2];
+					System.arraycopy(textos, 0, nuevo, 0, numTextos);
+					textos = nuevo;
+				}
+				// Primero se guarda el texto y luego se publica el codigo, asi quien
+				// lea el codigo del mapa ya puede leer su texto
+				textos[numTextos] = texto;
+				c = numTextos++;
+				codigos.put(texto, c);
+			}
+			return c;
+		}
+	}
+
+
+	/** Devuelve el texto de un codigo
+	 * @param codigo Codigo devuelto por codigo()
+	 * @return Texto o null si el codigo es -1
+	 */
+	public static String texto(int codigo){
+		return codigo < 0 ? null : textos[codigo];
+	}
+
+
+	/** Indica si los valores de una clave se guardan como textos en lugar de como codigos
+	 * @param clave Codigo de la clave
+	 * @return true si es una clave con un valor propio de cada elemento
+	 */
+	public static boolean esPropia(int clave){
+		for (int p : PROPIAS)
+			if (p == clave)
+				return true;
+		return false;
+	}
+
+
+	/** Numero de textos distintos que hay en el diccionario */
+	public static synchronized int size(){
+		return numTextos;
+	}
+}
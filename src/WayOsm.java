@@ -1,14 +1,14 @@
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 
 public class WayOsm {
 
-	private List<Long> nodos; // Nodos que componen ese way
+	private ListaIds nodos; // Nodos que componen ese way
 	private List<String> shapes; // Lista de Shapes a los que pertenece, para la simplificacion de ways
 	// Esta clase no tiene tags porque al leer los shapefiles, se parte la geometria en el
 	// numero maximo posible de ways de dos nodos. Los tags de esa geometria se almacenan en una relacion
@@ -17,9 +17,11 @@ public class WayOsm {
 
 	public WayOsm(List<Long> l){
 		if (l == null)
-			this.nodos = new ArrayList<Long>();
+			this.nodos = new ListaIds();
+		else if (l instanceof ListaIds)
+			this.nodos = (ListaIds) l;
 		else
-			this.nodos = l;
+			this.nodos = new ListaIds(l);
 		shapes = new ArrayList<String>();
 	}
 
@@ -150,9 +152,10 @@ public class WayOsm {
 	 */
 	@Override
 	public synchronized int hashCode() {
-		final int prime = 31 + nodos.size();
+		long[] firma = nodos.getFirma();
+		final int prime = 31 + firma.length;
 		long result = 17;
-		for (long l : sortNodes())
+		for (long l : firma)
 			result = result * prime +  (int) (l^(l>>>32));
 
 		return (int)result;
@@ -176,19 +179,8 @@ public class WayOsm {
 
 		WayOsm other = (WayOsm) obj;
 
-		if (nodos == null) {
-			if (other.nodos != null)
-				return false;
-		} else if (this.sortNodes().size() == other.sortNodes().size()){
-			boolean equal = true;
-			for(int x = 0; equal && x < this.sortNodes().size(); x++)
-				equal = this.sortNodes().get(x).equals(other.sortNodes().get(x));
-			return equal;
-		}
-		else 
-			return false; 
-
-		return true;
+		// Se comparan los nodos ordenados, que cada lista guarda hasta que se modifica
+		return Arrays.equals(this.nodos.getFirma(), other.nodos.getFirma());
 	}
 
 
@@ -212,7 +204,6 @@ public class WayOsm {
 	 * @param id Id del way
 	 * @return Devuelve en un String el way listo para imprimir
 	 */
-	@SuppressWarnings("unchecked")
 	public String printWay(String key, Long id, Cat2OsmUtils utils){
 		String s = "";
 
@@ -235,7 +226,7 @@ public class WayOsm {
 
 			// Referencias a los nodos
 			for (Long nodeId : nodos)
-				if (((WayOsm) utils.getKeyFromValue((Map<String, Map<Object, Long>>) ((Object)utils.getTotalWays()), key, id)).getNodes().contains(nodeId) )
+				if (utils.getWay(key, id).getNodes().contains(nodeId) )
 					s += ("<nd ref=\""+ nodeId +"\"/>\n");
 
 